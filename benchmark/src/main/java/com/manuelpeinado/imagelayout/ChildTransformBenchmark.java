@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compares transforming a batch of children in the calling thread with splitting it
+ * among a pool of worker threads as ChildTransformBatch does, to find the batch size
+ * from which the parallel transform pays for the hand-off. The result depends heavily on
+ * the number and speed of the cores, so it should be run on hardware similar to the
+ * target devices before lowering the parallel threshold of ImageLayout.
+ * <p>Run with <code>gradle :benchmark:jmh -PjmhArgs=ChildTransformBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChildTransformBenchmark {
+    private static final int IMAGE_WIDTH = 4000;
+    private static final int IMAGE_HEIGHT = 3000;
+    // Same split as ChildTransformBatch: the calling thread takes one of the chunks
+    private static final int WORKER_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    @Param({ "100", "1000", "5000", "10000", "50000" })
+    public int childCount;
+
+    @Param({ "false", "true" })
+    public boolean parallel;
+
+    private int[] imageValues;
+    private int[] values;
+    private ThreadPoolExecutor executor;
+
+    @Setup
+    public void setUp() {
+        imageValues = FitEngineBenchmark.createChildValues(childCount, IMAGE_WIDTH, IMAGE_HEIGHT, new Random(42));
+        values = new int[imageValues.length];
+        executor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        executor.prestartAllCoreThreads();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public int[] transform() {
+        System.arraycopy(imageValues, 0, values, 0, values.length);
+        if (parallel) {
+            FitEngine.transformChildrenInParallel(executor, WORKER_COUNT + 1, values, childCount, 12.5f, 40.25f,
+                    0.27f, 0.27f, false);
+        }
+        else {
+            FitEngine.transformChildren(values, 0, childCount, 12.5f, 40.25f, 0.27f, 0.27f, false);
+        }
+        return values;
+    }
+}
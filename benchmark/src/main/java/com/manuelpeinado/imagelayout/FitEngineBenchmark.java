@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the cost of fitting the image and transforming the layout params of N
+ * children with {@link FitEngine#transformChildren}, which is what a measure pass of
+ * ImageLayout does besides measuring the children themselves.
+ * <p>Run with <code>gradle :benchmark:jmh</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FitEngineBenchmark {
+    private static final int IMAGE_WIDTH = 4000;
+    private static final int IMAGE_HEIGHT = 3000;
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1920;
+
+    @Param({ "10", "100", "1000", "10000" })
+    public int childCount;
+
+    @Param({ "0", "1", "2", "3" })
+    public int fitMode;
+
+    @Param({ "false", "true" })
+    public boolean precise;
+
+    private int[] imageValues;
+    private int[] values;
+    private final int[] destRect = new int[4];
+
+    @Setup
+    public void setUp() {
+        imageValues = createChildValues(childCount, IMAGE_WIDTH, IMAGE_HEIGHT, new Random(42));
+        values = new int[imageValues.length];
+    }
+
+    @Benchmark
+    public int[] fitAndTransform() {
+        int gravity = FitEngine.CENTER_HORIZONTAL | FitEngine.CENTER_VERTICAL;
+        FitEngine.fit(fitMode, gravity, IMAGE_WIDTH, IMAGE_HEIGHT, VIEW_WIDTH, VIEW_HEIGHT, destRect);
+        float widthRatio = (destRect[2] - destRect[0]) / (float) IMAGE_WIDTH;
+        float heightRatio = (destRect[3] - destRect[1]) / (float) IMAGE_HEIGHT;
+        // The values are transformed in place, so start every invocation from the image ones
+        System.arraycopy(imageValues, 0, values, 0, values.length);
+        FitEngine.transformChildren(values, 0, childCount, destRect[0], destRect[1], widthRatio, heightRatio,
+                precise);
+        return values;
+    }
+
+    /**
+     * Creates the values of count children as ImageLayout would store them, each one
+     * placed by a random edge or center and with the unused values set to -1
+     */
+    static int[] createChildValues(int count, int imageWidth, int imageHeight, Random random) {
+        int[] values = new int[count * FitEngine.CHILD_STRIDE];
+        for (int i = 0; i < values.length; i += FitEngine.CHILD_STRIDE) {
+            for (int j = 0; j < FitEngine.CHILD_STRIDE; ++j) {
+                values[i + j] = -1;
+            }
+            values[i + FitEngine.CHILD_LEFT + random.nextInt(3)] = random.nextInt(imageWidth);
+            values[i + FitEngine.CHILD_TOP + random.nextInt(3)] = random.nextInt(imageHeight);
+            values[i + FitEngine.CHILD_WIDTH] = random.nextInt(200);
+            values[i + FitEngine.CHILD_HEIGHT] = random.nextInt(200);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the properties that every fit must have over many combinations of fit mode,
+ * gravity and sizes, and that the batched child transform agrees with the per-value one.
+ */
+public class FitEngineTest {
+    private static final int[] FIT_MODES = { FitEngine.FIT_VERTICAL, FitEngine.FIT_HORIZONTAL, FitEngine.FIT_BOTH,
+            FitEngine.FIT_AUTO };
+    private static final int[] HORIZONTAL_GRAVITIES = { FitEngine.LEFT, FitEngine.CENTER_HORIZONTAL, FitEngine.RIGHT };
+    private static final int[] VERTICAL_GRAVITIES = { FitEngine.TOP, FitEngine.CENTER_VERTICAL, FitEngine.BOTTOM };
+    private static final int[] SIZES = { 1, 7, 100, 333, 480, 1080, 1920, 4000 };
+    private static final int RANDOM_CASES = 2000;
+
+    private final int[] rect = new int[4];
+
+    @Test
+    public void fitHasExpectedProperties() {
+        for (int bitmapWidth : SIZES) {
+            for (int bitmapHeight : SIZES) {
+                for (int viewWidth : SIZES) {
+                    for (int viewHeight : SIZES) {
+                        checkAllModes(bitmapWidth, bitmapHeight, viewWidth, viewHeight);
+                    }
+                }
+            }
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < RANDOM_CASES; ++i) {
+            checkAllModes(1 + random.nextInt(5000), 1 + random.nextInt(5000), 1 + random.nextInt(2000),
+                    1 + random.nextInt(2000));
+        }
+    }
+
+    private void checkAllModes(int bitmapWidth, int bitmapHeight, int viewWidth, int viewHeight) {
+        for (int fitMode : FIT_MODES) {
+            for (int hGravity : HORIZONTAL_GRAVITIES) {
+                for (int vGravity : VERTICAL_GRAVITIES) {
+                    FitEngine.fit(fitMode, hGravity | vGravity, bitmapWidth, bitmapHeight, viewWidth, viewHeight, rect);
+                    checkFit(fitMode, hGravity, vGravity, bitmapWidth, bitmapHeight, viewWidth, viewHeight);
+                }
+            }
+        }
+    }
+
+    private void checkFit(int fitMode, int hGravity, int vGravity, int bitmapWidth, int bitmapHeight, int viewWidth,
+            int viewHeight) {
+        String message = "mode " + fitMode + ", gravity " + hGravity + "|" + vGravity + ", bitmap " + bitmapWidth
+                + "x" + bitmapHeight + ", view " + viewWidth + "x" + viewHeight + ": ";
+        int width = rect[2] - rect[0];
+        int height = rect[3] - rect[1];
+        assertTrue(message + "empty fit", width >= 0 && height >= 0);
+
+        // One side is truncated to whole pixels, which moves the aspect ratio by at most
+        // one pixel of that side
+        long error = Math.abs((long) width * bitmapHeight - (long) height * bitmapWidth);
+        assertTrue(message + "aspect ratio not preserved", error <= Math.max(bitmapWidth, bitmapHeight));
+
+        boolean horizontal = width == viewWidth && rect[0] == 0;
+        boolean vertical = height == viewHeight && rect[1] == 0;
+        switch (fitMode) {
+        case FitEngine.FIT_HORIZONTAL:
+            assertTrue(message + "width does not match the view", horizontal);
+            break;
+        case FitEngine.FIT_VERTICAL:
+            assertTrue(message + "height does not match the view", vertical);
+            break;
+        case FitEngine.FIT_BOTH:
+            assertTrue(message + "no side matches the view", horizontal || vertical);
+            // Truncation may leave the other side one pixel short
+            assertTrue(message + "does not cover the view", width >= viewWidth - 1 && height >= viewHeight - 1);
+            break;
+        default:
+            assertTrue(message + "no side matches the view", horizontal || vertical);
+            assertTrue(message + "does not fit inside the view", width <= viewWidth && height <= viewHeight);
+            break;
+        }
+
+        // The gravity only places the image along the side which does not match the view
+        if (!horizontal || fitMode == FitEngine.FIT_VERTICAL) {
+            checkGravity(message + "horizontal gravity: ", hGravity == FitEngine.LEFT, hGravity == FitEngine.RIGHT,
+                    rect[0], rect[2], viewWidth);
+        }
+        if (!vertical || fitMode == FitEngine.FIT_HORIZONTAL) {
+            checkGravity(message + "vertical gravity: ", vGravity == FitEngine.TOP, vGravity == FitEngine.BOTTOM,
+                    rect[1], rect[3], viewHeight);
+        }
+    }
+
+    private static void checkGravity(String message, boolean start, boolean end, int first, int last, int viewSize) {
+        if (start) {
+            assertEquals(message + "not at the start", 0, first);
+        }
+        else if (end) {
+            assertEquals(message + "not at the end", viewSize, last);
+        }
+        else {
+            // Both halves are rounded down, so the margins may differ by one pixel
+            assertTrue(message + "not centered", Math.abs(first + last - viewSize) <= 1);
+        }
+    }
+
+    @Test
+    public void transformChildrenMatchesTransformOfEachValue() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100; ++i) {
+            int count = 1 + random.nextInt(50);
+            int[] imageValues = FitEngineBenchmark.createChildValues(count, 4000, 3000, random);
+            float originX = random.nextFloat() * 200 - 100;
+            float originY = random.nextFloat() * 200 - 100;
+            float widthRatio = 0.05f + random.nextFloat() * 3;
+            float heightRatio = 0.05f + random.nextFloat() * 3;
+            checkTransformChildren(imageValues, count, originX, originY, widthRatio, heightRatio, false);
+            checkTransformChildren(imageValues, count, originX, originY, widthRatio, heightRatio, true);
+        }
+    }
+
+    private static void checkTransformChildren(int[] imageValues, int count, float originX, float originY,
+            float widthRatio, float heightRatio, boolean precise) {
+        int[] expected = new int[imageValues.length];
+        for (int i = 0; i < expected.length; i += FitEngine.CHILD_STRIDE) {
+            for (int j = 0; j < FitEngine.CHILD_STRIDE; ++j) {
+                expected[i + j] = transformValue(imageValues, i, j, originX, originY, widthRatio, heightRatio, precise);
+            }
+        }
+        int[] actual = imageValues.clone();
+        // Transform in two ranges to check that they are independent
+        int middle = count / 2;
+        FitEngine.transformChildren(actual, middle, count, originX, originY, widthRatio, heightRatio, precise);
+        FitEngine.transformChildren(actual, 0, middle, originX, originY, widthRatio, heightRatio, precise);
+        assertArrayEquals("precise " + precise + ": ", expected, actual);
+    }
+
+    private static int transformValue(int[] values, int base, int field, float originX, float originY,
+            float widthRatio, float heightRatio, boolean precise) {
+        int value = values[base + field];
+        switch (field) {
+        case FitEngine.CHILD_LEFT:
+        case FitEngine.CHILD_RIGHT:
+        case FitEngine.CHILD_CENTER_X:
+            return precise ? FitEngine.transformCoordinatePrecise(value, originX, widthRatio)
+                           : FitEngine.transformCoordinate(value, Math.round(originX), widthRatio);
+        case FitEngine.CHILD_TOP:
+        case FitEngine.CHILD_BOTTOM:
+        case FitEngine.CHILD_CENTER_Y:
+            return precise ? FitEngine.transformCoordinatePrecise(value, originY, heightRatio)
+                           : FitEngine.transformCoordinate(value, Math.round(originY), heightRatio);
+        case FitEngine.CHILD_WIDTH:
+            if (precise && value >= 0) {
+                return FitEngine.transformSizePrecise(values[base + FitEngine.CHILD_LEFT],
+                        values[base + FitEngine.CHILD_RIGHT], value, originX, widthRatio);
+            }
+            // Fall through
+        case FitEngine.CHILD_MAX_WIDTH:
+            return precise ? FitEngine.transformLengthPrecise(value, widthRatio)
+                           : FitEngine.transformLength(value, widthRatio);
+        case FitEngine.CHILD_HEIGHT:
+            if (precise && value >= 0) {
+                return FitEngine.transformSizePrecise(values[base + FitEngine.CHILD_TOP],
+                        values[base + FitEngine.CHILD_BOTTOM], value, originY, heightRatio);
+            }
+            // Fall through
+        default:
+            return precise ? FitEngine.transformLengthPrecise(value, heightRatio)
+                           : FitEngine.transformLength(value, heightRatio);
+        }
+    }
+
+    @Test
+    public void preciseEdgesOfAdjacentChildrenMatch() {
+        Random random = new Random(42);
+        for (int i = 0; i < RANDOM_CASES; ++i) {
+            float origin = random.nextFloat() * 200 - 100;
+            float ratio = 0.05f + random.nextFloat() * 3;
+            int start = random.nextInt(4000);
+            int size = random.nextInt(500);
+            int end = start + size;
+            // A child placed by its left edge and its neighbour placed by its right edge
+            int left = FitEngine.transformCoordinatePrecise(start, origin, ratio);
+            int width = FitEngine.transformSizePrecise(start, -1, size, origin, ratio);
+            int neighbourRight = FitEngine.transformCoordinatePrecise(end + size, origin, ratio);
+            int neighbourWidth = FitEngine.transformSizePrecise(-1, end + size, size, origin, ratio);
+            assertEquals("far edge of " + start + "+" + size, FitEngine.transformCoordinatePrecise(end, origin, ratio),
+                    left + width);
+            assertEquals("near edge of neighbour at " + end, left + width, neighbourRight - neighbourWidth);
+        }
+    }
+
+    @Test
+    public void unmapPointsInvertsMapPoints() {
+        Random random = new Random(42);
+        int count = 500;
+        float[] points = new float[count * 2 + 2];
+        for (int i = 0; i < points.length; ++i) {
+            points[i] = random.nextFloat() * 4000;
+        }
+        float[] mapped = new float[points.length];
+        float[] unmapped = new float[points.length];
+        for (int i = 0; i < 100; ++i) {
+            float originX = random.nextFloat() * 200 - 100;
+            float originY = random.nextFloat() * 200 - 100;
+            float widthRatio = 0.05f + random.nextFloat() * 3;
+            float heightRatio = 0.05f + random.nextFloat() * 3;
+            // Start at an offset to check that the indices are honoured
+            FitEngine.mapPoints(points, 2, mapped, 0, count, originX, originY, widthRatio, heightRatio);
+            FitEngine.unmapPoints(mapped, 0, unmapped, 2, count, originX, originY, widthRatio, heightRatio);
+            for (int j = 2; j < points.length; ++j) {
+                assertEquals("point " + j, points[j], unmapped[j], 0.01f);
+            }
+            // In place
+            System.arraycopy(points, 0, mapped, 0, points.length);
+            FitEngine.mapPoints(mapped, 0, mapped, 0, count + 1, originX, originY, widthRatio, heightRatio);
+            FitEngine.unmapPoints(mapped, 0, mapped, 0, count + 1, originX, originY, widthRatio, heightRatio);
+            for (int j = 0; j < points.length; ++j) {
+                assertEquals("point " + j + " in place", points[j], mapped[j], 0.01f);
+            }
+        }
+    }
+}
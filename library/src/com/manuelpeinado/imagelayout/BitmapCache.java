@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * A process-wide cache of the background bitmaps decoded by {@link ImageLayout}, so that
+ * several layouts showing the same image at the same sample size share a single bitmap.
+ * <p>The cache is bounded by a configurable number of bytes. When the budget is exceeded
+ * the least recently used bitmaps are evicted. Optionally, bitmaps that are evicted and
+ * no longer shown by any layout can be kept in a reuse pool, so that their memory is
+ * recycled by the next decode (see {@link #setReusePoolEnabled(boolean)}).
+ * <p>All methods are thread safe.
+ */
+public class BitmapCache {
+    private static final String TAG = "ImageLayout";
+    private static BitmapCache instance;
+
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+    private final Map<Bitmap, Entry> entriesByBitmap = new IdentityHashMap<Bitmap, Entry>();
+    private final LinkedList<Bitmap> reusePool = new LinkedList<Bitmap>();
+    private int maxBytes;
+    private int cacheBytes;
+    private int poolBytes;
+    // Bitmaps currently used by at least one layout, whether evicted or not
+    private int pinnedBytes;
+    private boolean overBudgetReported;
+    private int hitCount;
+    private int missCount;
+    private boolean reusePoolEnabled;
+
+    private static class Entry {
+        final Bitmap bitmap;
+        int refCount;
+        boolean inCache = true;
+
+        Entry(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+    }
+
+    /**
+     * Returns the cache shared by all the instances of {@link ImageLayout}. By default its
+     * budget is one eighth of the maximum heap size.
+     */
+    public static synchronized BitmapCache getInstance() {
+        if (instance == null) {
+            instance = new BitmapCache((int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8));
+        }
+        return instance;
+    }
+
+    BitmapCache(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Changes the maximum number of bytes held by the cache. The reuse pool, if enabled,
+     * is bounded separately by the same amount. Bitmaps are evicted immediately if needed.
+     */
+    public synchronized void setMaxBytes(int maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize();
+    }
+
+    public synchronized int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of bytes currently held by the cache, not including the reuse pool
+     */
+    public synchronized int getSize() {
+        return cacheBytes;
+    }
+
+    /**
+     * Returns the number of bytes of the bitmaps currently shown by some layout, including
+     * those that have already been evicted. Layouts release their bitmaps when they are
+     * detached from the window, so this should stay within {@link #getMaxBytes()}; a
+     * warning is logged the first time it does not, as it usually means that layouts are
+     * being leaked.
+     */
+    public synchronized int getPinnedSize() {
+        return pinnedBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * If enabled, evicted bitmaps that are not shown by any layout are kept so that their
+     * memory can be reused by the next decode (BitmapFactory.Options.inBitmap), reducing
+     * allocations and garbage collections. Requires API level 11; on older devices this
+     * setting is ignored.
+     * <p>Before API level 19 a bitmap can only be reused for an image of the same size
+     * decoded without subsampling.
+     */
+    public synchronized void setReusePoolEnabled(boolean enabled) {
+        reusePoolEnabled = enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+        if (!reusePoolEnabled) {
+            reusePool.clear();
+            poolBytes = 0;
+        }
+    }
+
+    public synchronized boolean isReusePoolEnabled() {
+        return reusePoolEnabled;
+    }
+
+    /**
+     * Evicts all the bitmaps and empties the reuse pool
+     */
+    public synchronized void clear() {
+        int oldMaxBytes = maxBytes;
+        maxBytes = 0;
+        trimToSize();
+        maxBytes = oldMaxBytes;
+    }
+
+    /**
+     * Tells whether the bitmap for the given key is in the cache, without counting it as
+     * a hit or a miss
+     */
+    synchronized boolean contains(Object key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Returns the bitmap stored for the given key, or null if there is none. Every bitmap
+     * returned by this method must be handed back with {@link #release(Bitmap)} when it is
+     * no longer used.
+     */
+    synchronized Bitmap acquire(Object key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            ++missCount;
+            return null;
+        }
+        ++hitCount;
+        if (entry.refCount++ == 0) {
+            pin(entry);
+        }
+        return entry.bitmap;
+    }
+
+    /**
+     * Adds a newly decoded bitmap to the cache. The caller is considered to have acquired it.
+     */
+    synchronized void put(Object key, Bitmap bitmap) {
+        Entry entry = new Entry(bitmap);
+        entry.refCount = 1;
+        pin(entry);
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            previous.inCache = false;
+            cacheBytes -= byteCount(previous.bitmap);
+            recycleIfUnused(previous);
+        }
+        entriesByBitmap.put(bitmap, entry);
+        cacheBytes += byteCount(bitmap);
+        trimToSize();
+    }
+
+    /**
+     * Notifies that a bitmap obtained from {@link #acquire(Object)} or stored with
+     * {@link #put(Object, Bitmap)} is no longer used
+     */
+    synchronized void release(Bitmap bitmap) {
+        Entry entry = entriesByBitmap.get(bitmap);
+        if (entry == null) {
+            return;
+        }
+        if (--entry.refCount == 0) {
+            pinnedBytes -= byteCount(bitmap);
+        }
+        recycleIfUnused(entry);
+    }
+
+    private void pin(Entry entry) {
+        pinnedBytes += byteCount(entry.bitmap);
+        if (pinnedBytes > maxBytes && !overBudgetReported) {
+            overBudgetReported = true;
+            Log.w(TAG, "Bitmaps in use (" + pinnedBytes + " bytes) exceed the cache budget (" + maxBytes
+                    + " bytes); make sure that unused layouts are detached from the window");
+        }
+    }
+
+    /**
+     * Takes from the reuse pool a bitmap into which an image of the given size can be
+     * decoded, or returns null if there is none
+     */
+    synchronized Bitmap obtainReusableBitmap(int width, int height, int sampleSize, Bitmap.Config config) {
+        if (!reusePoolEnabled) {
+            return null;
+        }
+        boolean exactSizeRequired = Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT;
+        if (exactSizeRequired && sampleSize != 1) {
+            return null;
+        }
+        Iterator<Bitmap> it = reusePool.iterator();
+        while (it.hasNext()) {
+            Bitmap candidate = it.next();
+            boolean fits;
+            if (exactSizeRequired) {
+                fits = candidate.getWidth() == width && candidate.getHeight() == height && candidate.getConfig() == config;
+            }
+            else {
+                fits = candidate.getAllocationByteCount() >= width * height * bytesPerPixel(config);
+            }
+            if (fits) {
+                it.remove();
+                poolBytes -= byteCount(candidate);
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private void recycleIfUnused(Entry entry) {
+        if (entry.refCount > 0 || entry.inCache) {
+            return;
+        }
+        entriesByBitmap.remove(entry.bitmap);
+        if (reusePoolEnabled && entry.bitmap.isMutable()) {
+            reusePool.addLast(entry.bitmap);
+            poolBytes += byteCount(entry.bitmap);
+            trimReusePool();
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (cacheBytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            eldest.inCache = false;
+            cacheBytes -= byteCount(eldest.bitmap);
+            recycleIfUnused(eldest);
+        }
+        trimReusePool();
+    }
+
+    private void trimReusePool() {
+        while (poolBytes > maxBytes) {
+            poolBytes -= byteCount(reusePool.removeFirst());
+        }
+    }
+
+    static int byteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        }
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,590 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import android.content.ContentResolver;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.DisplayMetrics;
+import android.util.TypedValue;
+
+/**
+ * Decodes a bitmap (from a resource, a file, a content URI or a buffer) with just enough pixels to cover a given destination size.
+ * <p>The dimensions of the image are read upfront without decoding any pixel data, so
+ * that the layout can be computed before the actual bitmap is available.
+ */
+class BitmapDecoder {
+    // Types of the PNG chunks that determine whether an image is opaque
+    private static final int PNG_IHDR = 0x49484452;
+    private static final int PNG_TRNS = 0x74524E53;
+    private static final int PNG_IDAT = 0x49444154;
+    private static final int PNG_IEND = 0x49454E44;
+
+    /**
+     * Where the encoded image is read from. It must be possible to open it several
+     * times, possibly from several threads, since the image is decoded again whenever
+     * a different sample size is needed.
+     */
+    interface Source {
+        InputStream open() throws IOException;
+
+        /**
+         * Identifies the encoded image in the {@link BitmapCache}, or returns null if it
+         * has no identity that does not involve its data, in which case its bitmaps are
+         * not cached
+         */
+        Object getKey();
+
+        /**
+         * Tells whether the data can be read without blocking for long, so that decoding
+         * a small preview in the main thread is acceptable
+         */
+        boolean isLocal();
+    }
+
+    private final Source source;
+    // Dimensions of the encoded image
+    private int rawWidth, rawHeight;
+    // Dimensions after density scaling, i.e., what a BitmapDrawable would report
+    private int width, height;
+    private boolean opaque;
+    private Bitmap.Config preferredConfig = Bitmap.Config.ARGB_8888;
+
+    BitmapDecoder(Resources resources, int resourceId) {
+        this.source = new ResourceSource(resources, resourceId);
+        TypedValue value = new TypedValue();
+        resources.getValue(resourceId, value, true);
+        decodeBounds();
+
+        int density = value.density;
+        if (density == TypedValue.DENSITY_DEFAULT) {
+            density = DisplayMetrics.DENSITY_DEFAULT;
+        }
+        if (density != TypedValue.DENSITY_NONE) {
+            int targetDensity = resources.getDisplayMetrics().densityDpi;
+            width = scale(rawWidth, targetDensity, density);
+            height = scale(rawHeight, targetDensity, density);
+        }
+    }
+
+    /**
+     * Creates a decoder for an image which is not a resource, and thus is not scaled
+     * according to the screen density
+     */
+    BitmapDecoder(Source source) {
+        this.source = source;
+        decodeBounds();
+    }
+
+    /**
+     * Reads the dimensions of the image, which only requires parsing its header
+     */
+    private void decodeBounds() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new RuntimeException("Could not decode the dimensions of the image");
+        }
+        rawWidth = width = options.outWidth;
+        rawHeight = height = options.outHeight;
+        opaque = detectOpacity(options.outMimeType);
+    }
+
+    /**
+     * Tells whether the image is known to have no transparent pixels, which is the case
+     * of JPEGs and of PNGs without alpha channel or transparent color. Only the headers
+     * of PNG files are read.
+     */
+    private boolean detectOpacity(String mimeType) {
+        if ("image/jpeg".equals(mimeType)) {
+            return true;
+        }
+        if (!"image/png".equals(mimeType)) {
+            return false;
+        }
+        InputStream is = null;
+        try {
+            is = openStream();
+            return isOpaquePng(new DataInputStream(new BufferedInputStream(is)));
+        }
+        catch (IOException e) {
+            return false;
+        }
+        finally {
+            if (is != null) {
+                closeQuietly(is);
+            }
+        }
+    }
+
+    private static boolean isOpaquePng(DataInputStream in) throws IOException {
+        // Skip the signature
+        skipFully(in, 8);
+        boolean opaque = false;
+        while (true) {
+            int length = in.readInt();
+            int type = in.readInt();
+            if (type == PNG_IHDR) {
+                // Width, height and bit depth come before the color type
+                skipFully(in, 9);
+                int colorType = in.readUnsignedByte();
+                // Grayscale, RGB and palette; the others have an alpha channel
+                opaque = colorType == 0 || colorType == 2 || colorType == 3;
+                skipFully(in, length - 10 + 4);
+            }
+            else if (type == PNG_TRNS) {
+                return false;
+            }
+            else if (type == PNG_IDAT || type == PNG_IEND) {
+                return opaque;
+            }
+            else {
+                // Skip the data and the CRC
+                skipFully(in, length + 4);
+            }
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes(count);
+            if (skipped <= 0) {
+                // Throws at the end of the stream
+                in.readByte();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    boolean isOpaque() {
+        return opaque;
+    }
+
+    /**
+     * Sets the config of the bitmaps decoded from now on
+     */
+    void setPreferredConfig(Bitmap.Config config) {
+        preferredConfig = config;
+    }
+
+    Bitmap.Config getPreferredConfig() {
+        return preferredConfig;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getRawWidth() {
+        return rawWidth;
+    }
+
+    int getRawHeight() {
+        return rawHeight;
+    }
+
+    InputStream openStream() throws IOException {
+        return source.open();
+    }
+
+    /**
+     * @see Source#isLocal()
+     */
+    boolean isSourceLocal() {
+        return source.isLocal();
+    }
+
+    /**
+     * Returns the largest power of two sample size that still produces a bitmap at least
+     * as big as the given destination size
+     */
+    int computeSampleSize(int destWidth, int destHeight) {
+        int sampleSize = 1;
+        while (rawWidth / (sampleSize * 2) >= destWidth && rawHeight / (sampleSize * 2) >= destHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private Object getCacheKey(int sampleSize) {
+        Object sourceKey = source.getKey();
+        return sourceKey != null ? new CacheKey(sourceKey, sampleSize, preferredConfig) : null;
+    }
+
+    /**
+     * Tells whether the image with the given sample size is in the {@link BitmapCache}
+     */
+    boolean isCached(int sampleSize) {
+        Object key = getCacheKey(sampleSize);
+        return key != null && BitmapCache.getInstance().contains(key);
+    }
+
+    /**
+     * Decodes the image with the given sample size, or takes it from the shared
+     * {@link BitmapCache} if it has been decoded before. The returned bitmap must be
+     * handed back with {@link #release(Bitmap)} when it is no longer used.
+     */
+    Bitmap decode(int sampleSize) {
+        BitmapCache cache = BitmapCache.getInstance();
+        Object key = getCacheKey(sampleSize);
+        Bitmap result = key != null ? cache.acquire(key) : null;
+        if (result != null) {
+            return result;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        // Scaling is done at draw time, so there is no point in letting the decoder do it
+        options.inScaled = false;
+        options.inPreferredConfig = preferredConfig;
+        if (cache.isReusePoolEnabled()) {
+            // Only mutable bitmaps can be reused later on
+            options.inMutable = true;
+            options.inBitmap = cache.obtainReusableBitmap(ceilDiv(rawWidth, sampleSize), ceilDiv(rawHeight, sampleSize),
+                    sampleSize, preferredConfig);
+        }
+        Tracing.begin("ImageLayout#decode");
+        try {
+            result = decodeStream(options);
+        }
+        catch (IllegalArgumentException e) {
+            // The reused bitmap was not suitable after all
+            options.inBitmap = null;
+            result = decodeStream(options);
+        }
+        finally {
+            Tracing.end();
+        }
+        if (result == null) {
+            throw new RuntimeException("Could not decode bitmap");
+        }
+        if (key != null) {
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    static void release(Bitmap bitmap) {
+        BitmapCache.getInstance().release(bitmap);
+    }
+
+    private Bitmap decodeStream(BitmapFactory.Options options) {
+        InputStream is;
+        try {
+            is = openStream();
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not open image", e);
+        }
+        try {
+            return BitmapFactory.decodeStream(is, null, options);
+        }
+        finally {
+            closeQuietly(is);
+        }
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    private static int scale(int size, int targetDensity, int density) {
+        return (int) (size * targetDensity / (float) density + 0.5f);
+    }
+
+    static void closeQuietly(InputStream is) {
+        try {
+            is.close();
+        }
+        catch (IOException e) {
+        }
+    }
+
+    private static class CacheKey {
+        private final Object sourceKey;
+        private final int sampleSize;
+        private final Bitmap.Config config;
+
+        CacheKey(Object sourceKey, int sampleSize, Bitmap.Config config) {
+            this.sourceKey = sourceKey;
+            this.sampleSize = sampleSize;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return sampleSize == other.sampleSize && config == other.config && sourceKey.equals(other.sourceKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * sourceKey.hashCode() + sampleSize) + config.hashCode();
+        }
+    }
+
+    static class ResourceSource implements Source {
+        private final Resources resources;
+        private final int resourceId;
+
+        ResourceSource(Resources resources, int resourceId) {
+            this.resources = resources;
+            this.resourceId = resourceId;
+        }
+
+        @Override
+        public InputStream open() {
+            return resources.openRawResource(resourceId);
+        }
+
+        @Override
+        public Object getKey() {
+            return "res:" + resourceId;
+        }
+
+        @Override
+        public boolean isLocal() {
+            return true;
+        }
+    }
+
+    static class FileSource implements Source {
+        private final File file;
+
+        FileSource(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        @Override
+        public Object getKey() {
+            // A file that is overwritten must not be taken from the cache
+            return "file:" + file.getAbsolutePath() + "@" + file.lastModified();
+        }
+
+        @Override
+        public boolean isLocal() {
+            return true;
+        }
+    }
+
+    static class UriSource implements Source {
+        private final ContentResolver resolver;
+        private final Uri uri;
+
+        UriSource(ContentResolver resolver, Uri uri) {
+            this.resolver = resolver;
+            this.uri = uri;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            InputStream is = resolver.openInputStream(uri);
+            if (is == null) {
+                throw new IOException("Could not open " + uri);
+            }
+            return is;
+        }
+
+        @Override
+        public Object getKey() {
+            return "uri:" + uri;
+        }
+
+        @Override
+        public boolean isLocal() {
+            // The provider might fetch the data from the network
+            return false;
+        }
+    }
+
+    /**
+     * Reads the image from a buffer, which may be memory-mapped, without copying it.
+     * Buffers have no identity beyond their data, so their bitmaps are not cached: a key
+     * referencing the buffer would keep it alive, uncounted, as long as the cache entry.
+     */
+    static class ByteBufferSource implements Source {
+        private final ByteBuffer buffer;
+
+        ByteBufferSource(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public InputStream open() {
+            if (buffer.hasArray()) {
+                return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+            // Each stream gets its own position, so that several threads can read at once
+            return new ByteBufferInputStream(buffer.duplicate());
+        }
+
+        @Override
+        public Object getKey() {
+            return null;
+        }
+
+        @Override
+        public boolean isLocal() {
+            return true;
+        }
+    }
+
+    /**
+     * Reads the image from a stream, which can only be read once. What has been read is
+     * kept in memory, so that the image can be decoded again, and the stream is only read
+     * as far as needed: its header when the decoder is created, and the rest when the
+     * pixels are first decoded, possibly in a background thread. The stream is closed
+     * once it has been read completely. Like those of buffers, its bitmaps are not cached.
+     */
+    static class StreamSource implements Source {
+        // Volatile so that isLocal does not wait for a read in progress
+        private volatile InputStream in;
+        private byte[] data = new byte[16 * 1024];
+        private int length;
+
+        StreamSource(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public InputStream open() {
+            return new StreamSourceInputStream(this);
+        }
+
+        @Override
+        public Object getKey() {
+            return null;
+        }
+
+        /**
+         * The stream might come from the network, so it only counts as local once it has
+         * been read completely
+         */
+        @Override
+        public boolean isLocal() {
+            return in == null;
+        }
+
+        /**
+         * Copies into b up to len bytes starting at the given position of the stream,
+         * reading more of it if needed. Returns the number of bytes copied, or -1 at the
+         * end of the stream.
+         */
+        synchronized int read(int position, byte[] b, int off, int len) throws IOException {
+            while (length <= position && in != null) {
+                if (length == data.length) {
+                    byte[] newData = new byte[data.length * 2];
+                    System.arraycopy(data, 0, newData, 0, length);
+                    data = newData;
+                }
+                int count = in.read(data, length, data.length - length);
+                if (count == -1) {
+                    closeQuietly(in);
+                    in = null;
+                }
+                else {
+                    length += count;
+                }
+            }
+            if (position >= length) {
+                return -1;
+            }
+            len = Math.min(len, length - position);
+            System.arraycopy(data, position, b, off, len);
+            return len;
+        }
+    }
+
+    private static class StreamSourceInputStream extends InputStream {
+        private final StreamSource source;
+        private final byte[] single = new byte[1];
+        private int position;
+
+        StreamSourceInputStream(StreamSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int count = source.read(position, b, off, len);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Decodes bitmaps in a small pool of background threads shared by all the instances of
+ * {@link ImageLayout}, and delivers the results in the main thread.
+ */
+class BitmapLoader {
+    private static final String TAG = "ImageLayout";
+    private static final int POOL_SIZE = 2;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private static final ThreadPoolExecutor executor;
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    static {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Runnable lowPriority = new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                };
+                return new Thread(lowPriority, "ImageLayout decoder #" + count.incrementAndGet());
+            }
+        };
+        executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    interface Callback {
+        /**
+         * Called in the main thread when a bitmap has been decoded, unless the load has
+         * been cancelled
+         */
+        void onBitmapLoaded(Bitmap bitmap, int sampleSize);
+
+        /**
+         * Called in the main thread when a bitmap could not be decoded, unless the load
+         * has been cancelled
+         */
+        void onBitmapLoadFailed(int sampleSize);
+    }
+
+    /**
+     * A handle to an ongoing load
+     */
+    static class Task implements Runnable {
+        private final BitmapDecoder decoder;
+        private final int sampleSize;
+        private final Callback callback;
+        private volatile boolean cancelled;
+        // Written in the decoder thread before the callback is posted
+        private long decodeNanos;
+        private boolean cacheHit;
+
+        private Task(BitmapDecoder decoder, int sampleSize, Callback callback) {
+            this.decoder = decoder;
+            this.sampleSize = sampleSize;
+            this.callback = callback;
+        }
+
+        int getSampleSize() {
+            return sampleSize;
+        }
+
+        /**
+         * Time spent decoding, valid once the callback has been called
+         */
+        long getDecodeNanos() {
+            return decodeNanos;
+        }
+
+        boolean isCacheHit() {
+            return cacheHit;
+        }
+
+        /**
+         * Prevents the callback from being called. Must be called from the main thread.
+         */
+        void cancel() {
+            cancelled = true;
+            executor.remove(this);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            final Bitmap bitmap;
+            try {
+                cacheHit = decoder.isCached(sampleSize);
+                long start = System.nanoTime();
+                bitmap = decoder.decode(sampleSize);
+                decodeNanos = System.nanoTime() - start;
+            }
+            catch (RuntimeException e) {
+                Log.w(TAG, "Could not decode background image", e);
+                postFailure();
+                return;
+            }
+            catch (OutOfMemoryError e) {
+                // The most likely failure with large images, and one that a pool thread
+                // would otherwise swallow
+                Log.w(TAG, "Not enough memory to decode background image", e);
+                postFailure();
+                return;
+            }
+            if (bitmap == null) {
+                Log.w(TAG, "Could not decode background image");
+                postFailure();
+                return;
+            }
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancelled) {
+                        BitmapDecoder.release(bitmap);
+                    }
+                    else {
+                        callback.onBitmapLoaded(bitmap, sampleSize);
+                    }
+                }
+            });
+        }
+
+        private void postFailure() {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!cancelled) {
+                        callback.onBitmapLoadFailed(sampleSize);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs a task in the decoder threads, e.g., to decode a tile
+     */
+    static void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    static Task load(BitmapDecoder decoder, int sampleSize, Callback callback) {
+        Task task = new Task(decoder, sampleSize, callback);
+        executor.execute(task);
+        return task;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import java.util.ArrayList;
+
+import android.graphics.Rect;
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * A uniform grid over the children of an {@link ImageLayout}, in view coordinates, which
+ * allows finding the children under a point or inside a rect without visiting all of them.
+ * <p>Each child is stored in every cell that its layout rect overlaps. Rects that fall
+ * partially outside the view are clamped to the border cells.
+ */
+class ChildIndex {
+    private static final int CELL_SIZE = 128;
+
+    private final ViewGroup owner;
+    private int cols;
+    private int rows;
+    private ArrayList<View>[] cells;
+    private int indexedCount;
+    private boolean stale = true;
+
+    ChildIndex(ViewGroup owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Returns true if the whole index must be rebuilt, either because the size of the
+     * view has changed or because some children have been removed
+     */
+    boolean needsRebuild(int width, int height) {
+        return stale || cols != cellCount(width) || rows != cellCount(height) || indexedCount > owner.getChildCount();
+    }
+
+    @SuppressWarnings("unchecked")
+    void rebuild(int width, int height) {
+        int newCols = cellCount(width);
+        int newRows = cellCount(height);
+        if (cells == null || newCols != cols || newRows != rows) {
+            cols = newCols;
+            rows = newRows;
+            cells = new ArrayList[cols * rows];
+            for (int i = 0; i < cells.length; ++i) {
+                cells[i] = new ArrayList<View>();
+            }
+        }
+        else {
+            for (ArrayList<View> cell : cells) {
+                cell.clear();
+            }
+        }
+        indexedCount = 0;
+        stale = false;
+        int N = owner.getChildCount();
+        for (int i = 0; i < N; ++i) {
+            View child = owner.getChildAt(i);
+            ImageLayout.LayoutParams lp = (ImageLayout.LayoutParams) child.getLayoutParams();
+            lp.indexed = false;
+            insert(child, lp);
+        }
+    }
+
+    /**
+     * Moves a child to the cells that correspond to its current layout rect, if it has changed
+     */
+    void update(View child, ImageLayout.LayoutParams lp) {
+        if (lp.indexed && lp.indexedRect.equals(lp.transformedRect)) {
+            return;
+        }
+        remove(child, lp);
+        insert(child, lp);
+    }
+
+    private void insert(View child, ImageLayout.LayoutParams lp) {
+        Rect r = lp.transformedRect;
+        lp.indexedRect.set(r);
+        lp.indexed = true;
+        ++indexedCount;
+        int firstCol = clampCol(r.left), lastCol = clampCol(r.right - 1);
+        int firstRow = clampRow(r.top), lastRow = clampRow(r.bottom - 1);
+        for (int row = firstRow; row <= lastRow; ++row) {
+            for (int col = firstCol; col <= lastCol; ++col) {
+                cells[row * cols + col].add(child);
+            }
+        }
+    }
+
+    void remove(View child, ImageLayout.LayoutParams lp) {
+        if (!lp.indexed) {
+            return;
+        }
+        Rect r = lp.indexedRect;
+        int firstCol = clampCol(r.left), lastCol = clampCol(r.right - 1);
+        int firstRow = clampRow(r.top), lastRow = clampRow(r.bottom - 1);
+        for (int row = firstRow; row <= lastRow; ++row) {
+            for (int col = firstCol; col <= lastCol; ++col) {
+                cells[row * cols + col].remove(child);
+            }
+        }
+        lp.indexed = false;
+        --indexedCount;
+    }
+
+    /**
+     * Returns the topmost visible child whose layout rect contains the given point, or null
+     */
+    View findChildAt(int x, int y) {
+        if (cells == null) {
+            return null;
+        }
+        ArrayList<View> cell = cells[clampRow(y) * cols + clampCol(x)];
+        View result = null;
+        int resultIndex = -1;
+        int N = cell.size();
+        for (int i = 0; i < N; ++i) {
+            View child = cell.get(i);
+            if (!isValid(child) || child.getVisibility() != View.VISIBLE) {
+                continue;
+            }
+            ImageLayout.LayoutParams lp = (ImageLayout.LayoutParams) child.getLayoutParams();
+            if (lp.indexInParent > resultIndex && lp.indexedRect.contains(x, y)) {
+                result = child;
+                resultIndex = lp.indexInParent;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stamps all the children whose layout rect intersects the given rect with the given value
+     */
+    void markVisible(Rect r, int stamp) {
+        if (cells == null) {
+            return;
+        }
+        int firstCol = clampCol(r.left), lastCol = clampCol(r.right - 1);
+        int firstRow = clampRow(r.top), lastRow = clampRow(r.bottom - 1);
+        for (int row = firstRow; row <= lastRow; ++row) {
+            for (int col = firstCol; col <= lastCol; ++col) {
+                ArrayList<View> cell = cells[row * cols + col];
+                int N = cell.size();
+                for (int i = 0; i < N; ++i) {
+                    View child = cell.get(i);
+                    if (!isValid(child)) {
+                        continue;
+                    }
+                    ImageLayout.LayoutParams lp = (ImageLayout.LayoutParams) child.getLayoutParams();
+                    if (Rect.intersects(lp.indexedRect, r)) {
+                        lp.visibleStamp = stamp;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isValid(View child) {
+        if (child.getParent() != owner) {
+            // Removed from the layout since the index was built
+            stale = true;
+            return false;
+        }
+        return true;
+    }
+
+    private int clampCol(int x) {
+        return Math.max(0, Math.min(cols - 1, x / CELL_SIZE));
+    }
+
+    private int clampRow(int y) {
+        return Math.max(0, Math.min(rows - 1, y / CELL_SIZE));
+    }
+
+    private static int cellCount(int size) {
+        return Math.max(1, (size + CELL_SIZE - 1) / CELL_SIZE);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Build;
+import android.view.View;
+
+/**
+ * Precomputes the view coordinates of many children of an {@link ImageLayout} at once.
+ * The image coordinates of the children are copied into a primitive array, which is
+ * transformed in place with {@link FitEngine#transformChildren}, splitting the work
+ * among a pool of worker threads when there are enough children. Only measuring and
+ * laying out the children is left to the main thread.
+ */
+class ChildTransformBatch {
+    private static final long KEEP_ALIVE_SECONDS = 10;
+    // The calling thread takes one of the chunks
+    private static final int WORKER_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    private static ThreadPoolExecutor executor;
+
+    private View[] children = new View[0];
+    private int[] values = new int[0];
+    private int count;
+
+    void clear() {
+        for (int i = 0; i < count; ++i) {
+            children[i] = null;
+        }
+        count = 0;
+    }
+
+    void add(View child, ImageLayout.LayoutParams lp) {
+        if (count == children.length) {
+            int capacity = Math.max(16, count * 2);
+            View[] newChildren = new View[capacity];
+            System.arraycopy(children, 0, newChildren, 0, count);
+            children = newChildren;
+            int[] newValues = new int[capacity * FitEngine.CHILD_STRIDE];
+            System.arraycopy(values, 0, newValues, 0, count * FitEngine.CHILD_STRIDE);
+            values = newValues;
+        }
+        children[count] = child;
+        int base = count * FitEngine.CHILD_STRIDE;
+        values[base + FitEngine.CHILD_LEFT] = lp.left;
+        values[base + FitEngine.CHILD_RIGHT] = lp.right;
+        values[base + FitEngine.CHILD_CENTER_X] = lp.centerX;
+        values[base + FitEngine.CHILD_WIDTH] = lp.width;
+        values[base + FitEngine.CHILD_MAX_WIDTH] = lp.maxWidth;
+        values[base + FitEngine.CHILD_TOP] = lp.top;
+        values[base + FitEngine.CHILD_BOTTOM] = lp.bottom;
+        values[base + FitEngine.CHILD_CENTER_Y] = lp.centerY;
+        values[base + FitEngine.CHILD_HEIGHT] = lp.height;
+        values[base + FitEngine.CHILD_MAX_HEIGHT] = lp.maxHeight;
+        ++count;
+    }
+
+    int size() {
+        return count;
+    }
+
+    View getChild(int index) {
+        return children[index];
+    }
+
+    /**
+     * Returns one of the transformed values of a child, e.g.,
+     * {@link FitEngine#CHILD_LEFT}
+     */
+    int get(int index, int field) {
+        return values[index * FitEngine.CHILD_STRIDE + field];
+    }
+
+    /**
+     * Transforms the values of all the children, in parallel if there are at least
+     * parallelThreshold of them. Returns once all of them have been transformed.
+     */
+    void transform(float originX, float originY, float widthRatio, float heightRatio, boolean precise,
+            int parallelThreshold) {
+        if (count < parallelThreshold || WORKER_COUNT == 1) {
+            FitEngine.transformChildren(values, 0, count, originX, originY, widthRatio, heightRatio, precise);
+        }
+        else {
+            FitEngine.transformChildrenInParallel(getExecutor(), WORKER_COUNT + 1, values, count, originX, originY,
+                    widthRatio, heightRatio, precise);
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            ThreadFactory threadFactory = new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    // Normal priority, since the main thread waits for these threads
+                    return new Thread(r, "ImageLayout transform #" + count.incrementAndGet());
+                }
+            };
+            executor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), threadFactory);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+                executor.allowCoreThreadTimeOut(true);
+            }
+        }
+        return executor;
+    }
+}
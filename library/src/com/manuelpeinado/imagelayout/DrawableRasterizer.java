@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Renders a resolution-independent drawable (a vector, a picture, a shape with an
+ * intrinsic size...) into a bitmap of exactly the size at which it is going to be drawn.
+ * The last rendering is kept, so the drawable is only rendered again when that size
+ * changes.
+ * <p>Renderings are capped at {@link #MAX_RASTER_SIZE} pixels per side, which is both the
+ * smallest maximum texture size of hardware accelerated devices and a bound on the memory
+ * used (16 MB). Larger destinations, e.g., zoomed in, should draw the drawable directly.
+ */
+class DrawableRasterizer {
+    static final int MAX_RASTER_SIZE = 2048;
+
+    private final Drawable drawable;
+    private final int width;
+    private final int height;
+    private Bitmap bitmap;
+
+    DrawableRasterizer(Drawable drawable) {
+        this.drawable = drawable;
+        width = drawable.getIntrinsicWidth();
+        height = drawable.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Drawable must have an intrinsic size");
+        }
+    }
+
+    /**
+     * Intrinsic dimensions of the drawable, which determine its aspect ratio
+     */
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    Bitmap rasterize(int destWidth, int destHeight) {
+        int largest = Math.max(destWidth, destHeight);
+        if (largest > MAX_RASTER_SIZE) {
+            destWidth = Math.max(1, (int) ((long) destWidth * MAX_RASTER_SIZE / largest));
+            destHeight = Math.max(1, (int) ((long) destHeight * MAX_RASTER_SIZE / largest));
+        }
+        if (bitmap != null && bitmap.getWidth() == destWidth && bitmap.getHeight() == destHeight) {
+            return bitmap;
+        }
+        bitmap = Bitmap.createBitmap(destWidth, destHeight, Bitmap.Config.ARGB_8888);
+        drawable.setBounds(0, 0, destWidth, destHeight);
+        drawable.draw(new Canvas(bitmap));
+        return bitmap;
+    }
+
+    /**
+     * Draws the drawable directly into the given rect, without going through a bitmap
+     */
+    void draw(Canvas canvas, Rect destRect) {
+        drawable.setBounds(destRect);
+        drawable.draw(canvas);
+    }
+
+    /**
+     * Drops the last rendering, which is done again by the next call to rasterize
+     */
+    void release() {
+        bitmap = null;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
+import android.animation.ValueAnimator;
+import android.graphics.Rect;
+import android.view.animation.AccelerateDecelerateInterpolator;
+
+/**
+ * Interpolates the destination rect of the image of an {@link ImageLayout} between two
+ * fits. Each frame is expressed as a scale and translation relative to the starting rect,
+ * so that the layout can apply it at draw time without measuring its children again.
+ * <p>Frames are driven by a ValueAnimator, so this class requires API level 11. The
+ * animator is only created when an animation starts, so that older devices never load it.
+ */
+class FitAnimator {
+    private final ImageLayout layout;
+    private final Rect startRect = new Rect();
+    private final Rect endRect = new Rect();
+    private ValueAnimator animator;
+    private boolean running;
+
+    FitAnimator(ImageLayout layout) {
+        this.layout = layout;
+    }
+
+    void start(Rect from, Rect to, long duration) {
+        cancel();
+        startRect.set(from);
+        endRect.set(to);
+        if (animator == null) {
+            animator = createAnimator();
+        }
+        animator.setDuration(duration);
+        running = true;
+        animator.start();
+    }
+
+    private ValueAnimator createAnimator() {
+        ValueAnimator result = ValueAnimator.ofFloat(0, 1);
+        result.setInterpolator(new AccelerateDecelerateInterpolator());
+        result.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
+            @Override
+            public void onAnimationUpdate(ValueAnimator animation) {
+                if (running) {
+                    applyFrame((Float) animation.getAnimatedValue());
+                }
+            }
+        });
+        result.addListener(new AnimatorListenerAdapter() {
+            @Override
+            public void onAnimationEnd(Animator animation) {
+                // Also called after cancel(), which clears the running flag first
+                if (running) {
+                    running = false;
+                    layout.onFitAnimationEnd();
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Stops the animation, returning true if it was running
+     */
+    boolean cancel() {
+        boolean wasRunning = running;
+        running = false;
+        if (animator != null) {
+            animator.cancel();
+        }
+        return wasRunning;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    private void applyFrame(float f) {
+        float left = startRect.left + f * (endRect.left - startRect.left);
+        float top = startRect.top + f * (endRect.top - startRect.top);
+        float width = startRect.width() + f * (endRect.width() - startRect.width());
+        // Fits preserve the aspect ratio of the image, so a single scale is enough. The
+        // layout does not start an animation from an empty rect.
+        float scale = width / startRect.width();
+        layout.setFitTransform(scale, left - scale * startRect.left, top - scale * startRect.top);
+    }
+}
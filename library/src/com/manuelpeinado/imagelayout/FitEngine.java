@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * The math behind the fitting of the image and the transform of the children from image
+ * to view coordinates. It only deals with primitives and does not depend on the Android
+ * framework, so that it can be tested and benchmarked on a plain JVM.
+ */
+final class FitEngine {
+    static final int FIT_VERTICAL = 0;
+    static final int FIT_HORIZONTAL = 1;
+    static final int FIT_BOTH = 2;
+    static final int FIT_AUTO = 3;
+
+    // Same values as the constants of android.view.Gravity
+    static final int CENTER_HORIZONTAL = 0x01;
+    static final int LEFT = 0x03;
+    static final int RIGHT = 0x05;
+    static final int HORIZONTAL_GRAVITY_MASK = 0x07;
+    static final int CENTER_VERTICAL = 0x10;
+    static final int TOP = 0x30;
+    static final int BOTTOM = 0x50;
+    static final int VERTICAL_GRAVITY_MASK = 0x70;
+
+    // Layout of the values of each child in the arrays used by transformChildren
+    static final int CHILD_LEFT = 0;
+    static final int CHILD_RIGHT = 1;
+    static final int CHILD_CENTER_X = 2;
+    static final int CHILD_WIDTH = 3;
+    static final int CHILD_MAX_WIDTH = 4;
+    static final int CHILD_TOP = 5;
+    static final int CHILD_BOTTOM = 6;
+    static final int CHILD_CENTER_Y = 7;
+    static final int CHILD_HEIGHT = 8;
+    static final int CHILD_MAX_HEIGHT = 9;
+    static final int CHILD_STRIDE = 10;
+
+    private FitEngine() {
+    }
+
+    /**
+     * Computes the destination rect of the image and stores it in out as left, top,
+     * right and bottom
+     */
+    static void fit(int fitMode, int gravity, int bitmapWidth, int bitmapHeight, int viewWidth, int viewHeight,
+            int[] out) {
+        float bitmapAspectRatio = bitmapWidth / (float) bitmapHeight;
+        float viewAspectRatio = viewWidth / (float) viewHeight;
+        switch (fitMode) {
+        case FIT_VERTICAL:
+            fitVertical(gravity, viewWidth, viewHeight, bitmapAspectRatio, out);
+            break;
+        case FIT_HORIZONTAL:
+            fitHorizontal(gravity, viewWidth, viewHeight, bitmapAspectRatio, out);
+            break;
+        case FIT_BOTH:
+            if (bitmapAspectRatio < viewAspectRatio) {
+                fitHorizontal(gravity, viewWidth, viewHeight, bitmapAspectRatio, out);
+            }
+            else {
+                fitVertical(gravity, viewWidth, viewHeight, bitmapAspectRatio, out);
+            }
+            break;
+        default:
+            if (bitmapAspectRatio > viewAspectRatio) {
+                fitHorizontal(gravity, viewWidth, viewHeight, bitmapAspectRatio, out);
+            }
+            else {
+                fitVertical(gravity, viewWidth, viewHeight, bitmapAspectRatio, out);
+            }
+            break;
+        }
+    }
+
+    private static void fitHorizontal(int gravity, int w, int h, float bitmapAspectRatio, int[] out) {
+        int destWidth = w;
+        int destHeight = (int) (destWidth / bitmapAspectRatio);
+        int vGravity = gravity & VERTICAL_GRAVITY_MASK;
+        int top = 0;
+        if (vGravity == CENTER_VERTICAL) {
+            top = h / 2 - destHeight / 2;
+        }
+        else if (vGravity == BOTTOM) {
+            top = h - destHeight;
+        }
+        out[0] = 0;
+        out[1] = top;
+        out[2] = destWidth;
+        out[3] = top + destHeight;
+    }
+
+    private static void fitVertical(int gravity, int w, int h, float bitmapAspectRatio, int[] out) {
+        int destHeight = h;
+        int destWidth = (int) (destHeight * bitmapAspectRatio);
+        int hGravity = gravity & HORIZONTAL_GRAVITY_MASK;
+        int left = 0;
+        if (hGravity == CENTER_HORIZONTAL) {
+            left = w / 2 - destWidth / 2;
+        }
+        else if (hGravity == RIGHT) {
+            left = w - destWidth;
+        }
+        out[0] = left;
+        out[1] = 0;
+        out[2] = left + destWidth;
+        out[3] = destHeight;
+    }
+
+    /**
+     * Transforms a coordinate from image to view space
+     * @param origin The position of the image origin, in view coordinates
+     * @param ratio The scale factor from image to view
+     */
+    static int transformCoordinate(int coordinate, int origin, float ratio) {
+        return origin + (int) (coordinate * ratio);
+    }
+
+    /**
+     * Transforms a coordinate from image to view space computing the position in float
+     * and rounding it to the nearest pixel, so that an edge shared by two rects in image
+     * space maps to the same pixel no matter which rect it belongs to
+     */
+    static int transformCoordinatePrecise(int coordinate, float origin, float ratio) {
+        return Math.round(origin + coordinate * ratio);
+    }
+
+    /**
+     * Transforms a length from image to view space
+     */
+    static int transformLength(int length, float ratio) {
+        return (int) (length * ratio);
+    }
+
+    /**
+     * Transforms a length from image to view space, rounding to the nearest pixel
+     */
+    static int transformLengthPrecise(int length, float ratio) {
+        return Math.round(length * ratio);
+    }
+
+    /**
+     * Transforms the size of a child placed by one of its edges in precise mode. The size
+     * is the distance between the transformed edges, so that the far edge lands on the same
+     * pixel as the near edge of a neighbour which starts there in image space.
+     * @param start The near edge (left or top) in image space, or -1 if not set
+     * @param end The far edge (right or bottom) in image space, or -1 if not set; only used
+     *        if start is not set
+     */
+    static int transformSizePrecise(int start, int end, int size, float origin, float ratio) {
+        if (start != -1) {
+            return transformCoordinatePrecise(start + size, origin, ratio) - transformCoordinatePrecise(start, origin, ratio);
+        }
+        if (end != -1) {
+            return transformCoordinatePrecise(end, origin, ratio) - transformCoordinatePrecise(end - size, origin, ratio);
+        }
+        return transformLengthPrecise(size, ratio);
+    }
+
+    /**
+     * Transforms in place the image coordinates and sizes of the children from first
+     * (inclusive) to last (exclusive), stored with a stride of {@link #CHILD_STRIDE}
+     * values. Every value is transformed, whether it is set or not; the caller decides
+     * which ones to use. Each child is independent of the others, so disjoint ranges can
+     * be transformed concurrently.
+     * @param precise Whether positions are rounded as in the precise placement mode
+     */
+    static void transformChildren(int[] values, int first, int last, float originX, float originY,
+            float widthRatio, float heightRatio, boolean precise) {
+        int roundedOriginX = Math.round(originX);
+        int roundedOriginY = Math.round(originY);
+        for (int i = first * CHILD_STRIDE, n = last * CHILD_STRIDE; i < n; i += CHILD_STRIDE) {
+            // Sizes first, since in precise mode they depend on the untransformed edges
+            int width = values[i + CHILD_WIDTH];
+            int height = values[i + CHILD_HEIGHT];
+            for (int j = CHILD_WIDTH; j <= CHILD_MAX_WIDTH; ++j) {
+                values[i + j] = precise ? transformLengthPrecise(values[i + j], widthRatio)
+                                        : transformLength(values[i + j], widthRatio);
+            }
+            for (int j = CHILD_HEIGHT; j <= CHILD_MAX_HEIGHT; ++j) {
+                values[i + j] = precise ? transformLengthPrecise(values[i + j], heightRatio)
+                                        : transformLength(values[i + j], heightRatio);
+            }
+            if (precise && width >= 0) {
+                values[i + CHILD_WIDTH] = transformSizePrecise(values[i + CHILD_LEFT], values[i + CHILD_RIGHT],
+                        width, originX, widthRatio);
+            }
+            if (precise && height >= 0) {
+                values[i + CHILD_HEIGHT] = transformSizePrecise(values[i + CHILD_TOP], values[i + CHILD_BOTTOM],
+                        height, originY, heightRatio);
+            }
+            for (int j = CHILD_LEFT; j <= CHILD_CENTER_X; ++j) {
+                values[i + j] = precise ? transformCoordinatePrecise(values[i + j], originX, widthRatio)
+                                        : transformCoordinate(values[i + j], roundedOriginX, widthRatio);
+            }
+            for (int j = CHILD_TOP; j <= CHILD_CENTER_Y; ++j) {
+                values[i + j] = precise ? transformCoordinatePrecise(values[i + j], originY, heightRatio)
+                                        : transformCoordinate(values[i + j], roundedOriginY, heightRatio);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #transformChildren}, but splits the children from 0 to count in
+     * chunkCount ranges and transforms all but the first one in the given executor. The
+     * calling thread transforms the first range and then waits for the others.
+     */
+    static void transformChildrenInParallel(Executor executor, int chunkCount, final int[] values, int count,
+            final float originX, final float originY, final float widthRatio, final float heightRatio,
+            final boolean precise) {
+        int chunkSize = (count + chunkCount - 1) / chunkCount;
+        final CountDownLatch done = new CountDownLatch(chunkCount - 1);
+        for (int i = 1; i < chunkCount; ++i) {
+            final int first = Math.min(count, i * chunkSize);
+            final int last = Math.min(count, first + chunkSize);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        transformChildren(values, first, last, originX, originY, widthRatio, heightRatio, precise);
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        transformChildren(values, 0, Math.min(count, chunkSize), originX, originY, widthRatio, heightRatio, precise);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Transforms count points stored as consecutive x, y pairs with
+     * view = origin + image * ratio. src and dst may be the same array.
+     */
+    static void mapPoints(float[] src, int srcIndex, float[] dst, int dstIndex, int count,
+            float originX, float originY, float widthRatio, float heightRatio) {
+        for (int i = 0, n = count * 2; i < n; i += 2) {
+            dst[dstIndex + i] = originX + src[srcIndex + i] * widthRatio;
+            dst[dstIndex + i + 1] = originY + src[srcIndex + i + 1] * heightRatio;
+        }
+    }
+
+    /**
+     * The inverse of {@link #mapPoints}
+     */
+    static void unmapPoints(float[] src, int srcIndex, float[] dst, int dstIndex, int count,
+            float originX, float originY, float widthRatio, float heightRatio) {
+        for (int i = 0, n = count * 2; i < n; i += 2) {
+            dst[dstIndex + i] = (src[srcIndex + i] - originX) / widthRatio;
+            dst[dstIndex + i + 1] = (src[srcIndex + i + 1] - originY) / heightRatio;
+        }
+    }
+}
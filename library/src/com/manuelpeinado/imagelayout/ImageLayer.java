@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * An image drawn on top of the background of an {@link ImageLayout}. It is stretched to
+ * the same destination rect as the background, so it shares its coordinate space.
+ */
+class ImageLayer {
+    private final BitmapDecoder decoder;
+    private Bitmap bitmap;
+    private int sampleSize;
+    private BitmapLoader.Task pendingLoad;
+    private final Rect srcRect = new Rect();
+    private boolean visible = true;
+    private int alpha = 255;
+
+    ImageLayer(BitmapDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    boolean isVisible() {
+        return visible;
+    }
+
+    void setVisible(boolean visible) {
+        this.visible = visible;
+    }
+
+    int getAlpha() {
+        return alpha;
+    }
+
+    void setAlpha(int alpha) {
+        this.alpha = alpha;
+    }
+
+    BitmapDecoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * Returns the sample size of the current bitmap, or 0 if there is none
+     */
+    int getSampleSize() {
+        return bitmap != null ? sampleSize : 0;
+    }
+
+    void setBitmap(Bitmap newBitmap, int newSampleSize) {
+        if (bitmap != null) {
+            BitmapDecoder.release(bitmap);
+        }
+        bitmap = newBitmap;
+        sampleSize = newSampleSize;
+        srcRect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    BitmapLoader.Task getPendingLoad() {
+        return pendingLoad;
+    }
+
+    void setPendingLoad(BitmapLoader.Task task) {
+        pendingLoad = task;
+    }
+
+    void cancelPendingLoad() {
+        if (pendingLoad != null) {
+            pendingLoad.cancel();
+            pendingLoad = null;
+        }
+    }
+
+    void draw(Canvas canvas, Rect destRect, Paint paint) {
+        if (!visible || alpha == 0 || bitmap == null) {
+            return;
+        }
+        paint.setAlpha(alpha);
+        canvas.drawBitmap(bitmap, srcRect, destRect, paint);
+    }
+
+    void release() {
+        cancelPendingLoad();
+        if (bitmap != null) {
+            BitmapDecoder.release(bitmap);
+            bitmap = null;
+        }
+        sampleSize = 0;
+    }
+}
@@ -15,17 +15,31 @@
  */
 package com.manuelpeinado.imagelayout;
 
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.database.DataSetObserver;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Rect;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Build;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.util.TypedValue;
 import android.view.Gravity;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 
 /**
  * A layout that arranges its children in relation to a background image. The
@@ -45,14 +59,14 @@ public class ImageLayout extends ViewGroup {
      * <p>If there is too much horizontal space it is left blank. 
      * <p>The vertical position of the image is controlled by the android:gravity attribute
      */
-    public static final int FIT_VERTICAL = 0;
+    public static final int FIT_VERTICAL = FitEngine.FIT_VERTICAL;
     /**
      * The image is made to fill the available horizontal space, and may be cropped 
      * vertically if there is not enough space. 
      * <p>If there is too much vertical space it is left blank. 
      * <p>The vertical position of the image is controlled by the android:gravity attribute
      */
-    public static final int FIT_HORIZONTAL = 1;
+    public static final int FIT_HORIZONTAL = FitEngine.FIT_HORIZONTAL;
 
     /**
      * The image fills the available space both vertically and horizontally. 
@@ -60,7 +74,7 @@ public class ImageLayout extends ViewGroup {
      * of the available space, the image is cropped either vertically or horizontally,
      * depending on which provides the best fit
      */
-    public static final int FIT_BOTH = 2;
+    public static final int FIT_BOTH = FitEngine.FIT_BOTH;
  
     /**
      * The image is made to fill the available space vertically in portrait mode
@@ -70,151 +84,1954 @@ public class ImageLayout extends ViewGroup {
      * actual device orientation, but on the relative aspect ratios of the image
      * and the view.
      */
-    public static final int FIT_AUTO = 3;
+    public static final int FIT_AUTO = FitEngine.FIT_AUTO;
+
+    /**
+     * The fit mode that will be used in case the user does not specify one
+     */
+    public static final int DEFAULT_FIT_MODE = FIT_AUTO;
+
+    /**
+     * The background image is decoded with 32 bits per pixel. This is the default.
+     */
+    public static final int BITMAP_CONFIG_ARGB_8888 = 0;
+
+    /**
+     * The background image is decoded with 16 bits per pixel and no alpha channel, which
+     * halves its memory footprint at the expense of color precision
+     */
+    public static final int BITMAP_CONFIG_RGB_565 = 1;
+
+    /**
+     * The background image is decoded as in {@link #BITMAP_CONFIG_RGB_565} if it is known
+     * to be opaque (a JPEG, or a PNG without alpha channel or transparent color), and as
+     * in {@link #BITMAP_CONFIG_ARGB_8888} otherwise
+     */
+    public static final int BITMAP_CONFIG_AUTO = 2;
+
+    /**
+     * The maximum zoom factor that will be used in case the user does not specify one
+     */
+    public static final float DEFAULT_MAX_ZOOM = 4;
+
+    /**
+     * Default minimum number of children that must be measured in the same pass for their
+     * transforms to be computed in parallel, when batched transforms are enabled. Batches
+     * are always transformed in the main thread unless the threshold is lowered.
+     * @see #setParallelTransformThreshold(int)
+     */
+    public static final int DEFAULT_PARALLEL_TRANSFORM_THRESHOLD = Integer.MAX_VALUE;
+
+    private static final float DEFAULT_MARKER_HIT_RADIUS_DIP = 24;
+
+    // How much smaller than needed the preview of a progressive load is decoded
+    private static final int PREVIEW_SAMPLE_FACTOR = 8;
+    // Screens worth of decoded tiles kept in memory in tiled rendering mode
+    private static final int TILE_CACHE_SCREENS = 3;
+    // Highest zoom at which images that are decoded whole (i.e., not in tiles) get more
+    // pixels; beyond it they are upscaled, which keeps them within 4 times the memory of
+    // the fitted image
+    private static final float MAX_WHOLE_DECODE_ZOOM = 2;
+
+    /**
+     * Draws the markers set with {@link ImageLayout#setMarkers(float[], int, MarkerRenderer)}
+     */
+    public interface MarkerRenderer {
+        /**
+         * Draws a single marker
+         * @param index The index of the marker in the array of markers
+         * @param x The horizontal position of the marker, in view coordinates
+         * @param y The vertical position of the marker, in view coordinates
+         */
+        void drawMarker(Canvas canvas, int index, float x, float y);
+    }
+
+    /**
+     * Interface definition for a callback to be invoked when a marker is clicked
+     */
+    public interface OnMarkerClickListener {
+        void onMarkerClick(ImageLayout layout, int index);
+    }
+
+    /**
+     * Receives timings and statistics of the work done by an {@link ImageLayout}. All the
+     * methods are called in the main thread, right after the corresponding pass.
+     * @see ImageLayout#setMetricsListener(MetricsListener)
+     */
+    public interface MetricsListener {
+        /**
+         * @param fitDurationNanos Time spent fitting the image, which is zero if the
+         *        previous fit was still valid
+         * @param measuredChildCount Number of children which actually had to be measured
+         */
+        void onMeasure(ImageLayout layout, long durationNanos, long fitDurationNanos, int childCount,
+                int measuredChildCount);
+
+        void onLayout(ImageLayout layout, long durationNanos, int childCount);
+
+        /**
+         * Reports the time spent drawing the background, the children and the markers
+         */
+        void onDraw(ImageLayout layout, long durationNanos, int childCount);
+
+        /**
+         * Called when a new bitmap for the background image has been obtained, either by
+         * decoding it (possibly in a background thread) or from the {@link BitmapCache}
+         * @param byteCount Memory used by the bitmap
+         */
+        void onBitmapDecoded(ImageLayout layout, long durationNanos, int sampleSize, int byteCount, boolean cacheHit);
+
+        /**
+         * Like {@link #onBitmapDecoded}, but for the bitmap of one of the layers
+         * @param layerIndex The index returned by {@link ImageLayout#addLayer(int)}
+         */
+        void onLayerDecoded(ImageLayout layout, int layerIndex, long durationNanos, int sampleSize, int byteCount,
+                boolean cacheHit);
+    }
+    
+    private BitmapDecoder bitmapDecoder;
+    private DrawableRasterizer drawableRasterizer;
+    private Bitmap bitmap;
+    private int bitmapSampleSize;
+    private final Rect bitmapDestRect = new Rect();
+    private int imageWidth;
+    private int imageHeight;
+    private final Rect bitmapSrcRect = new Rect();
+    private int fitMode = DEFAULT_FIT_MODE;
+    private int gravity = -1;
+    private final ImageFitter fitter = new ImageFitter(fitMode, gravity);
+    // Scale factors from image to view coordinates, updated once per measure pass
+    private float widthRatio;
+    private float heightRatio;
+    // Inputs and outputs of the last measure pass, so that the fit is skipped when
+    // the layout is measured several times with the same constraints
+    private boolean measureCacheValid;
+    private int lastWidthMeasureSpec, lastHeightMeasureSpec;
+    private int lastPaddingLeft, lastPaddingTop, lastPaddingRight, lastPaddingBottom;
+    private int lastMeasuredWidth, lastMeasuredHeight;
+    // Incremented whenever the transform from image to view coordinates changes
+    private int fitGeneration;
+    private boolean tiledRendering;
+    private TileRenderer tileRenderer;
+    private Rect clipRect = new Rect();
+    private boolean asyncLoading;
+    // Whether the current image was set with setImageResourceAsync, regardless of asyncLoading
+    private boolean imageAsync;
+    private BitmapLoader.Task pendingLoad;
+    private boolean progressiveLoading;
+    private Drawable placeholder;
+    private final Paint bitmapPaint = new Paint();
+    private int bitmapConfig = BITMAP_CONFIG_ARGB_8888;
+    private boolean prescaling;
+    private Bitmap prescaledBitmap;
+    private int lastDrawnDestWidth, lastDrawnDestHeight;
+    private final ArrayList<ImageLayer> layers = new ArrayList<ImageLayer>();
+    private final Paint layerPaint = new Paint();
+    private boolean layerFlattening;
+    // Sample size with which all the layers are decoded, or 0 if not known yet
+    private int layersSampleSize;
+    private boolean precisePlacement;
+    private ChildTransformBatch transformBatch;
+    // Part of the image covered by the view at the fitted scale, in image coords
+    private boolean cropCulling;
+    private final Rect cullRect = new Rect();
+    private int parallelTransformThreshold = DEFAULT_PARALLEL_TRANSFORM_THRESHOLD;
+    private MetricsListener metricsListener;
+    private long lastFitNanos;
+    private ChildIndex childIndex;
+    private int drawStamp;
+    private View touchTarget;
+    private boolean disallowIntercept;
+    private final MarkerOverlay markers = new MarkerOverlay();
+    private OnMarkerClickListener onMarkerClickListener;
+    private int pressedMarker = -1;
+    private ImageLayoutAdapter adapter;
+    private ViewRecycler recycler;
+    private final Rect viewportRect = new Rect();
+    // Zoom and pan, as a scale followed by a translation applied to the fitted image
+    private ZoomGestureHandler zoomGestureHandler;
+    private float zoomScale = 1, zoomTranslateX, zoomTranslateY;
+    private float maxZoom = DEFAULT_MAX_ZOOM;
+    private boolean relayoutOnZoomEnd;
+    // The part of the zoom that has been baked into the layout of the children
+    private float layoutZoomScale = 1, layoutZoomTranslateX, layoutZoomTranslateY;
+    // Transform from image coordinates to the layout coordinates of the children
+    private float childOriginX, childOriginY, childWidthRatio, childHeightRatio;
+    private boolean childTransformsApplied;
+    private final Matrix touchMatrix = new Matrix();
+    // Fit transitions are drawn through the zoom transform until they end
+    private final FitAnimator fitAnimator = new FitAnimator(this);
+    private final Rect fitAnimationRect = new Rect();
+    private int animatedFitMode, animatedGravity;
+
+    public ImageLayout(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        setWillNotDraw(false);
+        markers.setHitRadius(DEFAULT_MARKER_HIT_RADIUS_DIP * getResources().getDisplayMetrics().density);
+        parseAttributes(attrs);
+    }
+
+    private void parseAttributes(AttributeSet attrs) {
+        if (attrs == null) {
+            return;
+        }
+        TypedArray a = getContext().obtainStyledAttributes(attrs, R.styleable.ImageLayout);
+        int imageResource = a.getResourceId(R.styleable.ImageLayout_image, 0);
+        if (imageResource == 0) {
+            throw new RuntimeException("Invalid drawable resource in layout description file");
+        }
+
+        setImageSource(imageResource);
+
+        imageWidth = a.getInteger(R.styleable.ImageLayout_imageWidth, -1);
+        imageHeight = a.getInteger(R.styleable.ImageLayout_imageHeight, -1);
+
+        int fitMode = a.getInt(R.styleable.ImageLayout_fit, this.fitMode);
+        setFitMode(fitMode);
+
+        int gravity = a.getInt(R.styleable.ImageLayout_android_gravity, this.gravity);
+        setGravity(gravity);
+
+        setBitmapConfig(a.getInt(R.styleable.ImageLayout_bitmapConfig, bitmapConfig));
+
+        tiledRendering = a.getBoolean(R.styleable.ImageLayout_tiled, tiledRendering);
+        asyncLoading = a.getBoolean(R.styleable.ImageLayout_async, asyncLoading);
+        progressiveLoading = a.getBoolean(R.styleable.ImageLayout_progressive, progressiveLoading);
+        setPlaceholder(a.getDrawable(R.styleable.ImageLayout_placeholder));
+        a.recycle();
+    }
+
+    /**
+     * Determines how the background image is drawn
+     * @param newValue Accepted values are {@link ImageLayout#FIT_BOTH}, {@link ImageLayout#FIT_AUTO},
+     *        {@link ImageLayout#FIT_VERTICAL} and {@link ImageLayout#FIT_HORIZONTAL} 
+     */
+    public void setFitMode(int newValue) {
+        cancelFitAnimation();
+        if (fitMode == newValue) {
+            return;
+        }
+        fitMode = newValue;
+        updateFitter();
+    }
+    
+    public void setGravity(int newValue) {
+        cancelFitAnimation();
+        newValue = normalizeGravity(newValue);
+        if (gravity == newValue) {
+            return;
+        }
+        gravity = newValue;
+        updateFitter();
+    }
+
+    private static int normalizeGravity(int gravity) {
+        if ((gravity & Gravity.HORIZONTAL_GRAVITY_MASK) == 0) {
+            gravity |= Gravity.CENTER_HORIZONTAL;
+        }
+        if ((gravity & Gravity.VERTICAL_GRAVITY_MASK) == 0) {
+            gravity |= Gravity.CENTER_VERTICAL;
+        }
+        return gravity;
+    }
+
+    /**
+     * Changes the fit mode and the gravity with an animation of the given duration.
+     * <p>While the animation runs the image is transformed at draw time and the children
+     * are moved through their scale and translation properties, the same way as when
+     * zooming, so a single layout pass takes place when the animation ends. Any zoom is
+     * reset when the animation starts.
+     * <p>Requires API level 11; on older devices, or if the layout has not been measured
+     * yet, the new values are applied immediately.
+     */
+    public void animateFit(int fitMode, int gravity, long duration) {
+        gravity = normalizeGravity(gravity);
+        cancelFitAnimation();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || duration <= 0
+                || !hasImage() || !measureCacheValid || bitmapDestRect.isEmpty()) {
+            setFitMode(fitMode);
+            setGravity(gravity);
+            return;
+        }
+        resetZoom();
+        fitter.setFitMode(fitMode);
+        fitter.setGravity(gravity);
+        fitter.fit(getSourceWidth(), getSourceHeight(),
+                lastMeasuredWidth - getPaddingLeft() - getPaddingRight(),
+                lastMeasuredHeight - getPaddingTop() - getPaddingBottom(), fitAnimationRect);
+        fitAnimationRect.offset(getPaddingLeft(), getPaddingTop());
+        // The fitter keeps the current values until the animation ends, in case the
+        // layout is measured again in the meantime
+        fitter.setFitMode(this.fitMode);
+        fitter.setGravity(this.gravity);
+        animatedFitMode = fitMode;
+        animatedGravity = gravity;
+        fitAnimator.start(bitmapDestRect, fitAnimationRect, duration);
+    }
+
+    void setFitTransform(float scale, float translateX, float translateY) {
+        zoomScale = scale;
+        zoomTranslateX = translateX;
+        zoomTranslateY = translateY;
+        applyChildTransforms();
+        invalidate();
+    }
+
+    void onFitAnimationEnd() {
+        zoomScale = 1;
+        zoomTranslateX = zoomTranslateY = 0;
+        fitMode = animatedFitMode;
+        gravity = animatedGravity;
+        // The children recover their identity transform in onLayout
+        updateFitter();
+    }
+
+    private void cancelFitAnimation() {
+        if (fitAnimator.cancel()) {
+            setFitTransform(1, 0, 0);
+        }
+    }
+    
+    public int getFitMode() {
+        return fitMode;
+    }
+
+    /**
+     * Enables or disables tiled rendering of the background image. When enabled, the image
+     * is decoded in tiles, in a background thread, and only those that fall in the visible
+     * part of the view are requested; up to a few screens worth of them are kept in memory.
+     * This is intended for images that are much bigger than the screen.
+     * <p>Tiled rendering requires API level 10; on older devices this setting is ignored.
+     */
+    public void setTiledRenderingEnabled(boolean enabled) {
+        if (tiledRendering == enabled) {
+            return;
+        }
+        tiledRendering = enabled;
+        releaseBitmap();
+        requestLayout();
+        invalidate();
+    }
+
+    public boolean isTiledRenderingEnabled() {
+        return tiledRendering;
+    }
+
+    /**
+     * Enables or disables progressive loading of the background image. When enabled, a
+     * heavily subsampled preview of the image is decoded first and shown right away, and
+     * the image is then decoded at full quality in a background thread (or, if tiled
+     * rendering is enabled, the tiles are decoded in the next frame). The children are
+     * not measured again when the preview is replaced, since their coordinates do not
+     * depend on the bitmap.
+     * <p>No preview is decoded for images set from a stream or a URI that have not been
+     * read yet, since that could block the main thread; the placeholder is shown instead.
+     * <p>Takes effect the next time an image is set.
+     */
+    public void setProgressiveLoadingEnabled(boolean enabled) {
+        progressiveLoading = enabled;
+    }
+
+    public boolean isProgressiveLoadingEnabled() {
+        return progressiveLoading;
+    }
+
+    /**
+     * Determines the pixel format in which the background image is decoded
+     * @param newValue Accepted values are {@link #BITMAP_CONFIG_ARGB_8888} (the default),
+     *        {@link #BITMAP_CONFIG_RGB_565} and {@link #BITMAP_CONFIG_AUTO}
+     */
+    public void setBitmapConfig(int newValue) {
+        if (bitmapConfig == newValue) {
+            return;
+        }
+        bitmapConfig = newValue;
+        if (bitmapDecoder != null) {
+            applyBitmapConfig();
+            // Decode the image again in the new format
+            releaseBitmap();
+            requestLayout();
+            invalidate();
+        }
+    }
+
+    public int getBitmapConfig() {
+        return bitmapConfig;
+    }
+
+    private void applyBitmapConfig() {
+        boolean reduced = bitmapConfig == BITMAP_CONFIG_RGB_565
+                || (bitmapConfig == BITMAP_CONFIG_AUTO && bitmapDecoder.isOpaque());
+        bitmapDecoder.setPreferredConfig(reduced ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Determines whether the background image is filtered when scaled. Filtering gives
+     * better quality at the expense of speed. It is disabled by default.
+     */
+    public void setFilterBitmap(boolean filter) {
+        if (bitmapPaint.isFilterBitmap() == filter) {
+            return;
+        }
+        bitmapPaint.setFilterBitmap(filter);
+        layerPaint.setFilterBitmap(filter);
+        prescaledBitmap = null;
+        invalidate();
+    }
+
+    public boolean isFilterBitmap() {
+        return bitmapPaint.isFilterBitmap();
+    }
+
+    /**
+     * If enabled, once the size of the background image has remained the same for two
+     * consecutive frames a copy of the bitmap scaled to that size is created, and drawn
+     * from then on without any scaling. This speeds up drawing when the layout is redrawn
+     * often (e.g., because children are animated) at the cost of the memory taken by the
+     * scaled copy.
+     * <p>This setting has no effect when tiled rendering is enabled.
+     */
+    public void setPrescalingEnabled(boolean enabled) {
+        if (prescaling == enabled) {
+            return;
+        }
+        prescaling = enabled;
+        prescaledBitmap = null;
+        invalidate();
+    }
+
+    public boolean isPrescalingEnabled() {
+        return prescaling;
+    }
+
+    /**
+     * Enables or disables a spatial index over the children of this layout. When enabled,
+     * finding the child under a touch and skipping the children that fall outside the
+     * clip when drawing take time proportional to the number of nearby children, instead
+     * of to the total number of children. Intended for layouts with hundreds of children.
+     * <p>Note that when the index is enabled touch events are dispatched to the topmost
+     * child under the first pointer only, children are hit-tested and culled according
+     * to their layout bounds (so a child that is translated or animated outside them may
+     * not receive touches or be drawn), and any OnTouchListener set on the layout itself
+     * is ignored.
+     */
+    public void setSpatialIndexEnabled(boolean enabled) {
+        if (enabled == (childIndex != null)) {
+            return;
+        }
+        childIndex = enabled ? new ChildIndex(this) : null;
+        touchTarget = null;
+        requestLayout();
+        invalidate();
+    }
+
+    public boolean isSpatialIndexEnabled() {
+        return childIndex != null;
+    }
+
+    /**
+     * Converts points from image coordinates to view coordinates, using the same
+     * transform that positions the children (and the current zoom). Points are stored as
+     * consecutive x, y pairs; src and dst may be the same array. No allocation takes
+     * place, so this method can be called for large batches of points on every frame.
+     * <p>The results are not rounded; in precise placement mode, rounding them gives the
+     * exact pixels used for the edges of the children.
+     * <p>Only valid once the layout has been measured.
+     */
+    public void mapPointsFromImageToView(float[] src, int srcIndex, float[] dst, int dstIndex, int pointCount) {
+        FitEngine.mapPoints(src, srcIndex, dst, dstIndex, pointCount,
+                viewOriginX(), viewOriginY(), zoomScale * widthRatio, zoomScale * heightRatio);
+    }
+
+    /**
+     * Converts points from view coordinates to image coordinates. This is the inverse of
+     * {@link #mapPointsFromImageToView}.
+     */
+    public void mapPointsFromViewToImage(float[] src, int srcIndex, float[] dst, int dstIndex, int pointCount) {
+        FitEngine.unmapPoints(src, srcIndex, dst, dstIndex, pointCount,
+                viewOriginX(), viewOriginY(), zoomScale * widthRatio, zoomScale * heightRatio);
+    }
+
+    /**
+     * Converts rects from image coordinates to view coordinates. Rects are stored as
+     * consecutive left, top, right, bottom quadruples; src and dst may be the same array.
+     * @see #mapPointsFromImageToView
+     */
+    public void mapRectsFromImageToView(float[] src, int srcIndex, float[] dst, int dstIndex, int rectCount) {
+        // The transform has no rotation, so each rect is just two points
+        mapPointsFromImageToView(src, srcIndex, dst, dstIndex, rectCount * 2);
+    }
+
+    /**
+     * Converts rects from view coordinates to image coordinates. This is the inverse of
+     * {@link #mapRectsFromImageToView}.
+     */
+    public void mapRectsFromViewToImage(float[] src, int srcIndex, float[] dst, int dstIndex, int rectCount) {
+        mapPointsFromViewToImage(src, srcIndex, dst, dstIndex, rectCount * 2);
+    }
+
+    /**
+     * Position of the image origin in view coordinates, zoom included
+     */
+    private float viewOriginX() {
+        return zoomScale * bitmapDestRect.left + zoomTranslateX;
+    }
+
+    private float viewOriginY() {
+        return zoomScale * bitmapDestRect.top + zoomTranslateY;
+    }
+
+    /**
+     * Sets a listener which receives the duration of each measure, layout and draw pass
+     * and statistics about the decoding of the background image. When no listener is set
+     * (the default) no timings are taken.
+     * <p>Independently of this, on API level 18 and above the phases of the work of the
+     * layout show up as sections in systrace.
+     */
+    public void setMetricsListener(MetricsListener listener) {
+        metricsListener = listener;
+    }
+
+    /**
+     * Returns the memory used by the bitmaps of the background image currently held by
+     * this layout: the decoded bitmap, which is counted even if other layouts share it
+     * through the {@link BitmapCache}, and its prescaled copy, if any. Tiles and layers
+     * are not counted.
+     */
+    public int getBitmapByteCount() {
+        int result = 0;
+        if (bitmap != null) {
+            result += BitmapCache.byteCount(bitmap);
+        }
+        if (prescaledBitmap != null) {
+            result += BitmapCache.byteCount(prescaledBitmap);
+        }
+        return result;
+    }
+
+    /**
+     * Adds an image on top of the background image (and of the layers added before). The
+     * layer is stretched to the same area as the background, so both should have the
+     * same aspect ratio, and it is decoded with just enough resolution to fill that area.
+     * All the layers are decoded with the same sample size, in a background thread if
+     * the background image is.
+     * @return The index of the new layer
+     */
+    public int addLayer(int imageResource) {
+        ImageLayer layer = new ImageLayer(new BitmapDecoder(getResources(), imageResource));
+        layers.add(layer);
+        if (measureCacheValid) {
+            ensureLayersResolution();
+        }
+        onLayersChanged();
+        return layers.size() - 1;
+    }
+
+    public void removeAllLayers() {
+        for (ImageLayer layer : layers) {
+            layer.release();
+        }
+        layers.clear();
+        layersSampleSize = 0;
+        onLayersChanged();
+    }
+
+    public int getLayerCount() {
+        return layers.size();
+    }
+
+    public void setLayerVisible(int index, boolean visible) {
+        ImageLayer layer = layers.get(index);
+        if (layer.isVisible() != visible) {
+            layer.setVisible(visible);
+            onLayersChanged();
+        }
+    }
+
+    public boolean isLayerVisible(int index) {
+        return layers.get(index).isVisible();
+    }
+
+    /**
+     * Sets the opacity of a layer, between 0 (transparent) and 255 (opaque, the default)
+     */
+    public void setLayerAlpha(int index, int alpha) {
+        ImageLayer layer = layers.get(index);
+        if (layer.getAlpha() != alpha) {
+            layer.setAlpha(alpha);
+            onLayersChanged();
+        }
+    }
+
+    public int getLayerAlpha(int index) {
+        return layers.get(index).getAlpha();
+    }
+
+    /**
+     * If enabled, once the layers and the size of the image have remained the same for
+     * two consecutive frames, the background and the visible layers are composited into
+     * a single bitmap, which is drawn from then on instead of each of them. Any change
+     * to the layers discards this bitmap.
+     * <p>This setting has no effect while the image is zoomed or when tiled rendering
+     * is enabled.
+     */
+    public void setLayerFlatteningEnabled(boolean enabled) {
+        if (layerFlattening == enabled) {
+            return;
+        }
+        layerFlattening = enabled;
+        onLayersChanged();
+    }
+
+    public boolean isLayerFlatteningEnabled() {
+        return layerFlattening;
+    }
+
+    private void onLayersChanged() {
+        prescaledBitmap = null;
+        // Wait for the layers to be stable before flattening them again
+        lastDrawnDestWidth = lastDrawnDestHeight = 0;
+        invalidate();
+    }
+
+    /**
+     * Makes sure that every layer is decoded, or being decoded, with the sample size of
+     * the layer set. That is the smallest sample size that any of the layers needs to
+     * fill the destination rect, and like that of the background it only decreases, so
+     * that small changes in the layout do not trigger new decodes.
+     */
+    private void ensureLayersResolution() {
+        float scale = getWholeDecodeScale();
+        int destWidth = (int) (bitmapDestRect.width() * scale);
+        int destHeight = (int) (bitmapDestRect.height() * scale);
+        if (layers.isEmpty() || destWidth <= 0 || destHeight <= 0) {
+            return;
+        }
+        int sampleSize = Integer.MAX_VALUE;
+        for (int i = 0, N = layers.size(); i < N; ++i) {
+            sampleSize = Math.min(sampleSize, layers.get(i).getDecoder().computeSampleSize(destWidth, destHeight));
+        }
+        if (layersSampleSize == 0 || sampleSize < layersSampleSize) {
+            layersSampleSize = sampleSize;
+        }
+        boolean changed = false;
+        for (int i = 0, N = layers.size(); i < N; ++i) {
+            ImageLayer layer = layers.get(i);
+            if (layer.getSampleSize() == layersSampleSize) {
+                continue;
+            }
+            BitmapLoader.Task pending = layer.getPendingLoad();
+            if (isLoadingAsync()) {
+                if (pending == null || pending.getSampleSize() != layersSampleSize) {
+                    layer.cancelPendingLoad();
+                    layer.setPendingLoad(BitmapLoader.load(layer.getDecoder(), layersSampleSize,
+                            new LayerLoadCallback(layer)));
+                }
+            }
+            else {
+                layer.cancelPendingLoad();
+                layer.setBitmap(decodeLayerBitmap(i, layersSampleSize), layersSampleSize);
+                changed = true;
+            }
+        }
+        if (changed) {
+            prescaledBitmap = null;
+        }
+    }
+
+    private Bitmap decodeLayerBitmap(int index, int sampleSize) {
+        BitmapDecoder decoder = layers.get(index).getDecoder();
+        if (metricsListener == null) {
+            return decoder.decode(sampleSize);
+        }
+        boolean cacheHit = decoder.isCached(sampleSize);
+        long start = System.nanoTime();
+        Bitmap result = decoder.decode(sampleSize);
+        long duration = System.nanoTime() - start;
+        metricsListener.onLayerDecoded(this, index, duration, sampleSize, BitmapCache.byteCount(result), cacheHit);
+        return result;
+    }
+
+    /**
+     * Delivers the bitmap of a layer decoded in a background thread
+     */
+    private class LayerLoadCallback implements BitmapLoader.Callback {
+        private final ImageLayer layer;
+
+        LayerLoadCallback(ImageLayer layer) {
+            this.layer = layer;
+        }
+
+        @Override
+        public void onBitmapLoaded(Bitmap bitmap, int sampleSize) {
+            BitmapLoader.Task task = layer.getPendingLoad();
+            if (metricsListener != null) {
+                metricsListener.onLayerDecoded(ImageLayout.this, layers.indexOf(layer), task.getDecodeNanos(),
+                        sampleSize, BitmapCache.byteCount(bitmap), task.isCacheHit());
+            }
+            layer.setPendingLoad(null);
+            layer.setBitmap(bitmap, sampleSize);
+            onLayersChanged();
+        }
+
+        @Override
+        public void onBitmapLoadFailed(int sampleSize) {
+            // Allow the next measure pass to try again
+            layer.setPendingLoad(null);
+        }
+    }
+
+    private void drawLayers(Canvas canvas) {
+        for (int i = 0, N = layers.size(); i < N; ++i) {
+            layers.get(i).draw(canvas, bitmapDestRect, layerPaint);
+        }
+    }
+
+    /**
+     * Enables or disables precise placement of the children. By default the position of
+     * each edge of a child is truncated after scaling; in precise mode it is computed in
+     * float and rounded to the nearest pixel, so that children which share an edge in image
+     * coordinates are placed without gaps or overlaps between them.
+     * @see #getImageToViewMatrix(Matrix)
+     */
+    public void setPrecisePlacementEnabled(boolean enabled) {
+        if (precisePlacement == enabled) {
+            return;
+        }
+        precisePlacement = enabled;
+        ++fitGeneration;
+        requestLayout();
+    }
+
+    public boolean isPrecisePlacementEnabled() {
+        return precisePlacement;
+    }
+
+    /**
+     * Enables or disables batched transforms. When enabled, the measure pass first
+     * transforms the image coordinates of all the children that need to be laid out in a
+     * single tight loop over a primitive array, spread among several worker threads when
+     * there are at least as many children as the parallel threshold, and only then measures
+     * them. Worth enabling for layouts with thousands of children, e.g., dense maps.
+     * @see #setParallelTransformThreshold(int)
+     */
+    public void setBatchedTransformsEnabled(boolean enabled) {
+        if (enabled == (transformBatch != null)) {
+            return;
+        }
+        transformBatch = enabled ? new ChildTransformBatch() : null;
+    }
+
+    public boolean isBatchedTransformsEnabled() {
+        return transformBatch != null;
+    }
+
+    /**
+     * Sets the minimum number of children measured in the same pass for their transforms
+     * to be computed in parallel. Below it, the batch is transformed in the main thread.
+     * Only used when batched transforms are enabled. Handing the work to other threads has
+     * a fixed cost which only very large batches amortize, and where that happens depends
+     * on the device, so pick the value with ChildTransformBenchmark of the benchmark module
+     * run on similar hardware.
+     */
+    public void setParallelTransformThreshold(int threshold) {
+        parallelTransformThreshold = threshold;
+    }
+
+    public int getParallelTransformThreshold() {
+        return parallelTransformThreshold;
+    }
+
+    /**
+     * Enables or disables the culling of the children that fall in the part of the image
+     * which is cropped by the fit (e.g., the sides of a wide image with {@link #FIT_VERTICAL}).
+     * Culled children are neither measured nor drawn, and are laid out with empty bounds,
+     * until a change in the fit, the size of the layout or their own layout params brings
+     * them back into view.
+     * <p>A child is only culled if its bounds in image coordinates are known to be outside
+     * the visible part of the image, which requires its size to be set in image coordinates
+     * (layout_width, layout_height, layout_maxWidth, layout_maxHeight or both edges) unless
+     * it extends away from that part. Zooming never reveals a culled child, but a child
+     * culled under the old fit may pop in at the end of {@link #animateFit(int, int, long)}.
+     */
+    public void setCropCullingEnabled(boolean enabled) {
+        if (cropCulling == enabled) {
+            return;
+        }
+        cropCulling = enabled;
+        if (enabled && measureCacheValid) {
+            updateCullRect();
+        }
+        ++fitGeneration;
+        requestLayout();
+        invalidate();
+    }
+
+    public boolean isCropCullingEnabled() {
+        return cropCulling;
+    }
+
+    /**
+     * Stores in the given matrix the current transform from image coordinates to view
+     * coordinates, including the zoom, so that custom drawing can be positioned like the
+     * children without recomputing the fit. Only valid once the layout has been measured.
+     */
+    public void getImageToViewMatrix(Matrix out) {
+        out.setScale(widthRatio, heightRatio);
+        out.postTranslate(bitmapDestRect.left, bitmapDestRect.top);
+        out.postScale(zoomScale, zoomScale);
+        out.postTranslate(zoomTranslateX, zoomTranslateY);
+    }
+
+    /**
+     * Enables or disables zooming and panning the image (along with the children and
+     * markers) with pinch and drag gestures.
+     * <p>While the user zooms and pans, the image is transformed at draw time and the
+     * children are moved through their scale and translation properties, so no layout pass
+     * takes place. For this reason the scale, translation and pivot of the children should
+     * not be modified by the application when zooming is enabled.
+     * <p>Requires API level 11; on older devices this setting is ignored.
+     * @see #setRelayoutOnZoomEnd(boolean)
+     */
+    public void setZoomEnabled(boolean enabled) {
+        if (enabled == (zoomGestureHandler != null) || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        if (enabled) {
+            zoomGestureHandler = new ZoomGestureHandler(getContext(), this);
+        }
+        else {
+            zoomGestureHandler = null;
+            resetZoom();
+        }
+    }
+
+    public boolean isZoomEnabled() {
+        return zoomGestureHandler != null;
+    }
+
+    /**
+     * Sets the maximum zoom factor, relative to the fitted image. The default value is
+     * {@link #DEFAULT_MAX_ZOOM}.
+     * <p>Unless tiled rendering is enabled, the image is decoded whole, so it only gains
+     * detail up to a zoom factor of 2 and is upscaled beyond it.
+     * @see #setTiledRenderingEnabled(boolean)
+     */
+    public void setMaxZoom(float maxZoom) {
+        this.maxZoom = maxZoom;
+        if (zoomScale > maxZoom) {
+            setZoom(maxZoom, getWidth() / 2f, getHeight() / 2f);
+        }
+    }
+
+    public float getMaxZoom() {
+        return maxZoom;
+    }
+
+    /**
+     * Returns the current zoom factor, relative to the fitted image
+     */
+    public float getZoom() {
+        return zoomScale;
+    }
+
+    /**
+     * Changes the zoom factor, keeping the given point (in view coordinates) fixed
+     */
+    public void setZoom(float zoom, float focusX, float focusY) {
+        zoomBy(zoom / zoomScale, focusX, focusY);
+        onZoomGestureEnd();
+    }
+
+    /**
+     * Restores the image and the children to their fitted position
+     */
+    public void resetZoom() {
+        zoomScale = 1;
+        zoomTranslateX = zoomTranslateY = 0;
+        onZoomGestureEnd();
+        applyZoom();
+    }
+
+    /**
+     * If enabled, once a zoom gesture ends the children are measured and laid out again
+     * at the new scale (so that, for instance, text is rendered sharply) instead of just
+     * being scaled. Disabled by default.
+     */
+    public void setRelayoutOnZoomEnd(boolean enabled) {
+        relayoutOnZoomEnd = enabled;
+    }
+
+    public boolean isRelayoutOnZoomEnd() {
+        return relayoutOnZoomEnd;
+    }
+
+    void zoomBy(float factor, float focusX, float focusY) {
+        if (fitAnimator.isRunning()) {
+            return;
+        }
+        float newScale = Math.max(1, Math.min(maxZoom, zoomScale * factor));
+        factor = newScale / zoomScale;
+        zoomScale = newScale;
+        zoomTranslateX = focusX - factor * (focusX - zoomTranslateX);
+        zoomTranslateY = focusY - factor * (focusY - zoomTranslateY);
+        applyZoom();
+    }
+
+    void panBy(float dx, float dy) {
+        if (fitAnimator.isRunning()) {
+            return;
+        }
+        zoomTranslateX += dx;
+        zoomTranslateY += dy;
+        applyZoom();
+    }
+
+    void onZoomGestureEnd() {
+        if (hasImage() && measureCacheValid) {
+            // More pixels might be needed at the new scale
+            ensureBitmapResolution();
+            ensureLayersResolution();
+        }
+        boolean layoutZoomChanged = layoutZoomScale != zoomScale
+                || layoutZoomTranslateX != zoomTranslateX || layoutZoomTranslateY != zoomTranslateY;
+        boolean shouldBake = relayoutOnZoomEnd || layoutZoomScale != 1;
+        if (shouldBake && layoutZoomChanged) {
+            layoutZoomScale = zoomScale;
+            layoutZoomTranslateX = zoomTranslateX;
+            layoutZoomTranslateY = zoomTranslateY;
+            updateRatios();
+            ++fitGeneration;
+            requestLayout();
+        }
+        invalidate();
+    }
+
+    private void applyZoom() {
+        // Keep the view covered by the image
+        int width = getWidth(), height = getHeight();
+        zoomTranslateX = Math.max(width - zoomScale * width, Math.min(0, zoomTranslateX));
+        zoomTranslateY = Math.max(height - zoomScale * height, Math.min(0, zoomTranslateY));
+        applyChildTransforms();
+        invalidate();
+    }
+
+    /**
+     * Scale from the layout coordinates of the children to view coordinates
+     */
+    private float childScale() {
+        return zoomScale / layoutZoomScale;
+    }
+
+    private float childOffsetX() {
+        return zoomTranslateX - childScale() * layoutZoomTranslateX;
+    }
+
+    private float childOffsetY() {
+        return zoomTranslateY - childScale() * layoutZoomTranslateY;
+    }
+
+    private void applyChildTransforms() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        float scale = childScale();
+        float offsetX = childOffsetX();
+        float offsetY = childOffsetY();
+        boolean identity = scale == 1 && offsetX == 0 && offsetY == 0;
+        if (identity && !childTransformsApplied) {
+            return;
+        }
+        int N = getChildCount();
+        for (int i = 0; i < N; ++i) {
+            applyChildTransform(getChildAt(i), scale, offsetX, offsetY);
+        }
+        childTransformsApplied = !identity;
+    }
+
+    private static void applyChildTransform(View child, float scale, float offsetX, float offsetY) {
+        child.setPivotX(0);
+        child.setPivotY(0);
+        child.setScaleX(scale);
+        child.setScaleY(scale);
+        child.setTranslationX(scale * child.getLeft() + offsetX - child.getLeft());
+        child.setTranslationY(scale * child.getTop() + offsetY - child.getTop());
+    }
+
+    /**
+     * Moves several children at once to new positions in image coordinates, e.g., to
+     * update live locations on a map, without a measure pass over all the children.
+     * <p>coords holds count pairs of (x, y) values. The x value replaces whichever of the
+     * left, right and centerX attributes of the child is set (left and right are shifted
+     * together if both are set, and left is used if none is), and the same goes for y
+     * and top, bottom and centerY.
+     * <p>Only the given children are positioned again, keeping their current measured
+     * size, except in precise placement mode for those with a width or height in image
+     * units, which are measured again since their size depends on their position. If a
+     * measure pass is already pending, or any of the given children has requested a
+     * layout, a regular layout is requested instead.
+     */
+    public void moveChildren(View[] children, int[] coords, int count) {
+        boolean layoutNeeded = !measureCacheValid || isLayoutRequested();
+        for (int i = 0; i < count; ++i) {
+            View child = children[i];
+            if (child.getParent() != this) {
+                throw new IllegalArgumentException("View is not a child of this layout");
+            }
+            LayoutParams lp = (LayoutParams) child.getLayoutParams();
+            lp.moveTo(coords[2 * i], coords[2 * i + 1]);
+            // Children moving into or out of the cropped part of the image are measured
+            // or culled by the measure pass
+            layoutNeeded |= child.isLayoutRequested() || lp.culled != shouldCull(lp);
+        }
+        if (layoutNeeded) {
+            requestLayout();
+            return;
+        }
+        float scale = childScale();
+        float offsetX = childOffsetX();
+        float offsetY = childOffsetY();
+        for (int i = 0; i < count; ++i) {
+            View child = children[i];
+            LayoutParams lp = (LayoutParams) child.getLayoutParams();
+            if (lp.culled) {
+                lp.saveTransformState(fitGeneration);
+                continue;
+            }
+            if (precisePlacement && (lp.width >= 0 || lp.height >= 0)) {
+                // The precise size is the distance between the transformed edges, which
+                // depends on where the near edge lands
+                child.measure(makeWidthSpec(lp), makeHeightSpec(lp));
+            }
+            computeChildRect(child, lp);
+            lp.saveTransformState(fitGeneration);
+            Rect r = lp.transformedRect;
+            child.layout(r.left, r.top, r.right, r.bottom);
+            if (childIndex != null) {
+                childIndex.update(child, lp);
+            }
+            if (childTransformsApplied) {
+                applyChildTransform(child, scale, offsetX, offsetY);
+            }
+        }
+        invalidate();
+    }
+
+    @Override
+    public boolean onInterceptTouchEvent(MotionEvent ev) {
+        if (zoomGestureHandler != null && zoomGestureHandler.onInterceptTouchEvent(ev)) {
+            return true;
+        }
+        return super.onInterceptTouchEvent(ev);
+    }
+
+    /**
+     * Sets a collection of markers which are drawn on top of the background image, below
+     * the children. Markers are a lightweight alternative to child views when there are
+     * thousands of them, since no view or any other object is created per marker.
+     * <p>The array is not copied, so its contents can be updated in place; call
+     * {@link #invalidate()} afterwards to redraw the markers.
+     * @param coords The positions of the markers, in image coordinates, as consecutive
+     *        (x, y) pairs. Can be null to remove all markers
+     * @param count The number of markers, i.e., half the number of used array elements
+     * @param renderer The object in charge of drawing each marker
+     */
+    public void setMarkers(float[] coords, int count, MarkerRenderer renderer) {
+        markers.setMarkers(coords, count, renderer);
+        pressedMarker = -1;
+        invalidate();
+    }
+
+    public void setOnMarkerClickListener(OnMarkerClickListener listener) {
+        onMarkerClickListener = listener;
+    }
+
+    /**
+     * Sets how far from its position, in pixels, a marker reacts to touches. The default
+     * value is 24dp.
+     */
+    public void setMarkerHitRadius(float radius) {
+        markers.setHitRadius(radius);
+    }
+
+    public float getMarkerHitRadius() {
+        return markers.getHitRadius();
+    }
+
+    /**
+     * Sets the adapter that supplies the children of this layout. Only the items whose
+     * bounds intersect the visible part of the image (e.g., when the layout is inside a
+     * scroll view) have a view, and views are recycled as items become visible or not.
+     * <p>Children added with {@link #addView(View)} and friends are not affected.
+     * @param adapter The new adapter, or null to remove the current one along with all
+     *        the children it created
+     */
+    public void setAdapter(ImageLayoutAdapter adapter) {
+        if (this.adapter != null) {
+            this.adapter.unregisterDataSetObserver(adapterObserver);
+            recycler.recycleAll();
+            recycler = null;
+        }
+        this.adapter = adapter;
+        if (adapter != null) {
+            recycler = new ViewRecycler(this);
+            recycler.setAdapter(adapter);
+            adapter.registerDataSetObserver(adapterObserver);
+        }
+        requestLayout();
+        invalidate();
+    }
+
+    public ImageLayoutAdapter getAdapter() {
+        return adapter;
+    }
+
+    private final DataSetObserver adapterObserver = new DataSetObserver() {
+        @Override
+        public void onChanged() {
+            recycler.recycleAll();
+            requestLayout();
+            invalidate();
+        }
+    };
+
+    private final ViewTreeObserver.OnScrollChangedListener scrollListener = new ViewTreeObserver.OnScrollChangedListener() {
+        @Override
+        public void onScrollChanged() {
+            if (recycler != null) {
+                populateFromAdapter();
+                invalidate();
+            }
+            else if (tileRenderer != null) {
+                // With hardware acceleration, the part of the view that scrolls into view
+                // is not drawn unless it is invalidated, and it may need other tiles
+                invalidate();
+            }
+        }
+    };
+
+    /**
+     * Computes the part of the view which is both visible on screen and inside the clip
+     * of the canvas, in the coordinates of the canvas (i.e., before the zoom). Returns
+     * false if it is empty.
+     */
+    private boolean getTileVisibleRect(Canvas canvas, Rect out) {
+        if (!canvas.getClipBounds(out) || !getLocalVisibleRect(viewportRect)) {
+            return false;
+        }
+        if (zoomScale != 1 || zoomTranslateX != 0 || zoomTranslateY != 0) {
+            viewportRect.set((int) Math.floor((viewportRect.left - zoomTranslateX) / zoomScale),
+                             (int) Math.floor((viewportRect.top - zoomTranslateY) / zoomScale),
+                             (int) Math.ceil((viewportRect.right - zoomTranslateX) / zoomScale),
+                             (int) Math.ceil((viewportRect.bottom - zoomTranslateY) / zoomScale));
+        }
+        return out.intersect(viewportRect);
+    }
+
+    /**
+     * Budget of the tile cache: enough for a few screens of tiles
+     */
+    private int getTileCacheBytes() {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        return TILE_CACHE_SCREENS * metrics.widthPixels * metrics.heightPixels * 4;
+    }
+
+    /**
+     * Creates views for the adapter items that have become visible, and recycles those
+     * of the items that are no longer visible
+     */
+    private void populateFromAdapter() {
+        if (!measureCacheValid || widthRatio == 0 || heightRatio == 0) {
+            return;
+        }
+        if (getLocalVisibleRect(viewportRect)) {
+            float imageOriginX = viewOriginX();
+            float imageOriginY = viewOriginY();
+            float xRatio = zoomScale * widthRatio;
+            float yRatio = zoomScale * heightRatio;
+            viewportRect.set((int) ((viewportRect.left - imageOriginX) / xRatio),
+                             (int) ((viewportRect.top - imageOriginY) / yRatio),
+                             (int) Math.ceil((viewportRect.right - imageOriginX) / xRatio),
+                             (int) Math.ceil((viewportRect.bottom - imageOriginY) / yRatio));
+        }
+        else {
+            viewportRect.setEmpty();
+        }
+        recycler.populate(viewportRect);
+    }
+
+    /**
+     * Adds a view created by the adapter, and measures and lays it out immediately so
+     * that scrolling does not need a new layout pass
+     */
+    void attachRecycledView(View child, LayoutParams layoutParams) {
+        int count = getChildCount();
+        // Above every other child, even if some were removed since the last layout pass
+        layoutParams.indexInParent = count > 0 ? ((LayoutParams) getChildAt(count - 1).getLayoutParams()).indexInParent + 1 : 0;
+        addViewInLayout(child, -1, layoutParams, true);
+        measureChild(child);
+        Rect r = layoutParams.transformedRect;
+        child.layout(r.left, r.top, r.right, r.bottom);
+        if (childIndex != null) {
+            // A recycled view is not in the index, whatever its params say
+            layoutParams.indexed = false;
+            if (childIndex.needsRebuild(getWidth(), getHeight())) {
+                childIndex.rebuild(getWidth(), getHeight());
+            }
+            else {
+                childIndex.update(child, layoutParams);
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // Also resets the transform that a recycled view may keep from a previous zoom
+            applyChildTransform(child, childScale(), childOffsetX(), childOffsetY());
+        }
+    }
+
+    void detachRecycledView(View child) {
+        if (childIndex != null) {
+            childIndex.remove(child, (LayoutParams) child.getLayoutParams());
+        }
+        removeViewInLayout(child);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (onMarkerClickListener != null && handleMarkerTouchEvent(event)) {
+            return true;
+        }
+        if (zoomGestureHandler != null) {
+            return zoomGestureHandler.onTouchEvent(event);
+        }
+        return super.onTouchEvent(event);
+    }
+
+    private boolean handleMarkerTouchEvent(MotionEvent event) {
+        int action = event.getAction() & MotionEvent.ACTION_MASK;
+        switch (action) {
+        case MotionEvent.ACTION_DOWN:
+            pressedMarker = findMarkerAt(event.getX(), event.getY());
+            return pressedMarker != -1;
+        case MotionEvent.ACTION_UP:
+            if (pressedMarker == -1) {
+                return false;
+            }
+            int marker = pressedMarker;
+            pressedMarker = -1;
+            if (findMarkerAt(event.getX(), event.getY()) == marker) {
+                onMarkerClickListener.onMarkerClick(this, marker);
+            }
+            return true;
+        case MotionEvent.ACTION_CANCEL:
+            boolean wasPressed = pressedMarker != -1;
+            pressedMarker = -1;
+            return wasPressed;
+        default:
+            return pressedMarker != -1;
+        }
+    }
+
+    private int findMarkerAt(float x, float y) {
+        return markers.findMarkerAt(x + getScrollX(), y + getScrollY(), viewOriginX(), viewOriginY(),
+                zoomScale * widthRatio, zoomScale * heightRatio);
+    }
+
+    /**
+     * Changes the background image and its layout dimensions. The image is decoded in a
+     * background thread if async loading is enabled.
+     * @see #setAsyncLoadingEnabled(boolean)
+     */
+    public void setImageResource(int imageResource, int imageWidth, int imageHeight) {
+        setImageSource(imageResource);
+        imageAsync = false;
+
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+
+        updateFitter();
+    }
+
+    /**
+     * Like {@link #setImageResource(int, int, int)}, but the pixels of the image are decoded
+     * in a background thread. Children are laid out immediately, since their coordinates
+     * only depend on the given layout dimensions, and the placeholder (if any) is drawn
+     * until the image is ready.
+     * <p>Any load still in progress for a previous image is cancelled.
+     * @see #setPlaceholder(Drawable)
+     */
+    public void setImageResourceAsync(int imageResource, int imageWidth, int imageHeight) {
+        setImageSource(imageResource);
+        imageAsync = true;
+
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+
+        updateFitter();
+    }
+
+    /**
+     * Sets the background image from a file. Only the header of the file is read by this
+     * method; pixels are decoded once the size of the layout is known, with just enough
+     * resolution to fill it.
+     * <p>The image is decoded in a background thread if async loading is enabled.
+     * @see #setAsyncLoadingEnabled(boolean)
+     */
+    public void setImageFile(File file, int imageWidth, int imageHeight) {
+        setImage(new BitmapDecoder(new BitmapDecoder.FileSource(file)), imageWidth, imageHeight);
+    }
+
+    /**
+     * Sets the background image from a content or file URI.
+     * @see #setImageFile(File, int, int)
+     */
+    public void setImageUri(Uri uri, int imageWidth, int imageHeight) {
+        ContentResolver resolver = getContext().getContentResolver();
+        setImage(new BitmapDecoder(new BitmapDecoder.UriSource(resolver, uri)), imageWidth, imageHeight);
+    }
+
+    /**
+     * Sets the background image from a buffer containing the encoded image, e.g., a file
+     * mapped into memory. The buffer is not copied, so its contents must not change
+     * while it is in use; its position and limit are not modified. The decoded bitmaps are
+     * not shared with other layouts through the {@link BitmapCache}.
+     * @see #setImageFile(File, int, int)
+     */
+    public void setImageBuffer(ByteBuffer buffer, int imageWidth, int imageHeight) {
+        setImage(new BitmapDecoder(new BitmapDecoder.ByteBufferSource(buffer)), imageWidth, imageHeight);
+    }
+
+    /**
+     * Sets the background image from a stream containing the encoded image. Only the
+     * header is read by this method; the rest of the stream is read when the pixels are
+     * first decoded, in a background thread if async loading is enabled. Since the image
+     * might need to be decoded several times at different resolutions, what is read is
+     * kept in memory; prefer the other variants if the image is available in a file or a
+     * buffer. The layout takes ownership of the stream, and closes it at its end. The
+     * decoded bitmaps are not shared with other layouts through the {@link BitmapCache}.
+     * <p>Like the other setters, throws a RuntimeException if the header of the image
+     * cannot be read.
+     * @see #setImageFile(File, int, int)
+     */
+    public void setImageStream(InputStream is, int imageWidth, int imageHeight) {
+        setImage(new BitmapDecoder(new BitmapDecoder.StreamSource(is)), imageWidth, imageHeight);
+    }
+
+    private void setImage(BitmapDecoder decoder, int imageWidth, int imageHeight) {
+        setBitmapDecoder(decoder);
+        imageAsync = false;
+
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+
+        updateFitter();
+    }
+
+    /**
+     * Determines whether the background image is decoded in a background thread, in
+     * which case the placeholder is drawn until it is ready. Applies to the images set
+     * with the methods that do not specify it.
+     * @see #setPlaceholder(Drawable)
+     */
+    public void setAsyncLoadingEnabled(boolean enabled) {
+        asyncLoading = enabled;
+    }
+
+    public boolean isAsyncLoadingEnabled() {
+        return asyncLoading;
+    }
+
+    /**
+     * Sets a drawable which is not a bitmap (such as a vector or a picture) as the
+     * background image. It is rendered at the exact size at which it is displayed, and
+     * rendered again only when that size changes.
+     * @param drawable A drawable with an intrinsic size, which determines its aspect ratio
+     */
+    public void setImageDrawable(Drawable drawable, int imageWidth, int imageHeight) {
+        setDrawableRasterizer(new DrawableRasterizer(drawable));
+
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+
+        updateFitter();
+    }
+
+    private void setImageSource(int imageResource) {
+        TypedValue value = new TypedValue();
+        getResources().getValue(imageResource, value, true);
+        if (value.string != null && value.string.toString().endsWith(".xml")) {
+            // Not a bitmap, so it has to be inflated and rendered
+            setDrawableRasterizer(new DrawableRasterizer(getResources().getDrawable(imageResource)));
+        }
+        else {
+            // Only the dimensions are read here; pixels are decoded once the
+            // destination size is known (see ensureBitmapResolution)
+            setBitmapDecoder(new BitmapDecoder(getResources(), imageResource));
+        }
+    }
+
+    private void setBitmapDecoder(BitmapDecoder decoder) {
+        bitmapDecoder = decoder;
+        applyBitmapConfig();
+        drawableRasterizer = null;
+        releaseBitmap();
+    }
+
+    private void setDrawableRasterizer(DrawableRasterizer rasterizer) {
+        drawableRasterizer = rasterizer;
+        bitmapDecoder = null;
+        releaseBitmap();
+    }
+
+    private boolean hasImage() {
+        return bitmapDecoder != null || drawableRasterizer != null;
+    }
+
+    private int getSourceWidth() {
+        return bitmapDecoder != null ? bitmapDecoder.getWidth() : drawableRasterizer.getWidth();
+    }
+
+    private int getSourceHeight() {
+        return bitmapDecoder != null ? bitmapDecoder.getHeight() : drawableRasterizer.getHeight();
+    }
 
     /**
-     * The fit mode that will be used in case the user does not specify one
+     * Sets the drawable that is shown in place of the background image while it is being
+     * loaded asynchronously. It is stretched to the area that the image will occupy.
      */
-    public static final int DEFAULT_FIT_MODE = FIT_AUTO;
-    
-    private Bitmap bitmap;
-    private Rect bitmapDestRect;
-    private int imageWidth;
-    private int imageHeight;
-    private Rect bitmapSrcRect;
-    private ImageFitter fitter;
-    private int fitMode = DEFAULT_FIT_MODE;
-    private int gravity = -1;
+    public void setPlaceholder(Drawable placeholder) {
+        if (this.placeholder != null) {
+            this.placeholder.setCallback(null);
+        }
+        this.placeholder = placeholder;
+        if (placeholder != null) {
+            placeholder.setCallback(this);
+        }
+        invalidate();
+    }
 
-    public ImageLayout(Context context, AttributeSet attrs) {
-        super(context, attrs);
-        setWillNotDraw(false);
-        parseAttributes(attrs);
+    public Drawable getPlaceholder() {
+        return placeholder;
     }
 
-    private void parseAttributes(AttributeSet attrs) {
-        if (attrs == null) {
-            return;
-        }
-        TypedArray a = getContext().obtainStyledAttributes(attrs, R.styleable.ImageLayout);
-        Drawable drawable = a.getDrawable(R.styleable.ImageLayout_image);
-        if (drawable == null) {
-            throw new RuntimeException("Invalid drawable resource in layout description file");
+    @Override
+    protected boolean verifyDrawable(Drawable who) {
+        return who == placeholder || super.verifyDrawable(who);
+    }
+
+    private void releaseBitmap() {
+        measureCacheValid = false;
+        cancelPendingLoad();
+        if (bitmap != null) {
+            BitmapDecoder.release(bitmap);
         }
-        if (!(drawable instanceof BitmapDrawable)) {
-            throw new RuntimeException("Drawable resource in layout description file must be of type \"BitmapDrawable\"");
+        bitmap = null;
+        prescaledBitmap = null;
+        bitmapSampleSize = 0;
+        if (tileRenderer != null) {
+            tileRenderer.release();
+            tileRenderer = null;
         }
+    }
 
-        bitmap = extractBitmapFromDrawable(drawable);
-        bitmapSrcRect = bitmapRect(bitmap);
-
-        imageWidth = a.getInteger(R.styleable.ImageLayout_imageWidth, -1);
-        imageHeight = a.getInteger(R.styleable.ImageLayout_imageHeight, -1);
-
-        int fitMode = a.getInt(R.styleable.ImageLayout_fit, this.fitMode);
-        setFitMode(fitMode);
+    /**
+     * Returns the zoom factor at which images decoded whole should be decoded
+     */
+    private float getWholeDecodeScale() {
+        return Math.min(zoomScale, MAX_WHOLE_DECODE_ZOOM);
+    }
 
-        int gravity = a.getInt(R.styleable.ImageLayout_android_gravity, this.gravity);
-        setGravity(gravity);
-        a.recycle();
+    private boolean shouldUseTiles() {
+        return tiledRendering && Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1;
     }
 
     /**
-     * Determines how the background image is drawn
-     * @param newValue Accepted values are {@link ImageLayout#FIT_BOTH}, {@link ImageLayout#FIT_AUTO},
-     *        {@link ImageLayout#FIT_VERTICAL} and {@link ImageLayout#FIT_HORIZONTAL} 
+     * Makes sure that the background bitmap has enough pixels to fill the destination
+     * rect without being upscaled. The bitmap is only decoded again when the destination
+     * grows past the size covered by the current sample size, so that small changes in
+     * the layout do not trigger a new decode
      */
-    public void setFitMode(int newValue) {
-        if (fitter != null && fitMode == newValue) {
+    private void ensureBitmapResolution() {
+        // Tiles only cover the viewport, so they can follow the zoom all the way
+        float scale = shouldUseTiles() ? zoomScale : getWholeDecodeScale();
+        int destWidth = (int) (bitmapDestRect.width() * scale);
+        int destHeight = (int) (bitmapDestRect.height() * scale);
+        if (destWidth <= 0 || destHeight <= 0) {
             return;
         }
-        fitMode = newValue;
-        rebuildFitter();
-    }
-    
-    public void setGravity(int newValue) {
-        if (fitter != null && gravity == newValue) {
+        if (drawableRasterizer != null) {
+            // The drawable is drawn directly while zoomed, so it is only rendered at the
+            // fitted size, which keeps the bitmap bounded
+            Bitmap rendered = drawableRasterizer.rasterize(bitmapDestRect.width(), bitmapDestRect.height());
+            if (rendered != bitmap) {
+                setBitmap(rendered, 1);
+            }
             return;
         }
-        if ((newValue & Gravity.HORIZONTAL_GRAVITY_MASK) == 0) {
-            newValue |= Gravity.CENTER_HORIZONTAL;
+        int sampleSize = bitmapDecoder.computeSampleSize(destWidth, destHeight);
+        if (shouldUseTiles()) {
+            // Tiles are cheap to decode again, so they always follow the current size
+            if (tileRenderer == null) {
+                tileRenderer = new TileRenderer(this, bitmapDecoder, getTileCacheBytes());
+                if (progressiveLoading) {
+                    // Drawn until the tiles arrive
+                    decodePreview(sampleSize);
+                }
+            }
+            bitmapSampleSize = sampleSize;
+            return;
         }
-        if ((newValue & Gravity.VERTICAL_GRAVITY_MASK) == 0) {
-            newValue |= Gravity.CENTER_VERTICAL;
+        if (bitmap != null && sampleSize >= bitmapSampleSize) {
+            return;
         }
-        gravity = newValue;
-        rebuildFitter();
-    }
-    
-    public int getFitMode() {
-        return fitMode;
+        if (isLoadingAsync()) {
+            if (progressiveLoading && bitmap == null) {
+                decodePreview(sampleSize);
+            }
+            if (pendingLoad == null || pendingLoad.getSampleSize() != sampleSize) {
+                cancelPendingLoad();
+                pendingLoad = BitmapLoader.load(bitmapDecoder, sampleSize, loadCallback);
+            }
+            return;
+        }
+        setBitmap(decodeBitmap(sampleSize), sampleSize);
     }
 
-    /**
-     * Changes the background image and its layout dimensions.
-     */
-    public void setImageResource(int imageResource, int imageWidth, int imageHeight) {
-        bitmap = extractBitmapFromDrawable(getResources().getDrawable(imageResource));
-        bitmapSrcRect = bitmapRect(bitmap);
+    private boolean isLoadingAsync() {
+        return asyncLoading || imageAsync || progressiveLoading;
+    }
 
-        this.imageWidth = imageWidth;
-        this.imageHeight = imageHeight;
+    private void decodePreview(int sampleSize) {
+        if (!bitmapDecoder.isSourceLocal()) {
+            // Even a preview might need the whole source, which could block the main
+            // thread for long, so the placeholder is shown instead
+            return;
+        }
+        int previewSampleSize = sampleSize * PREVIEW_SAMPLE_FACTOR;
+        setBitmap(decodeBitmap(previewSampleSize), previewSampleSize);
+    }
 
-        rebuildFitter();
+    private Bitmap decodeBitmap(int sampleSize) {
+        if (metricsListener == null) {
+            return bitmapDecoder.decode(sampleSize);
+        }
+        boolean cacheHit = bitmapDecoder.isCached(sampleSize);
+        long start = System.nanoTime();
+        Bitmap result = bitmapDecoder.decode(sampleSize);
+        long duration = System.nanoTime() - start;
+        metricsListener.onBitmapDecoded(this, duration, sampleSize, BitmapCache.byteCount(result), cacheHit);
+        return result;
     }
 
-    private static Bitmap extractBitmapFromDrawable(Drawable drawable) {
-        return ((BitmapDrawable) drawable).getBitmap();
+    private void setBitmap(Bitmap bitmap, int sampleSize) {
+        if (this.bitmap != null) {
+            BitmapDecoder.release(this.bitmap);
+        }
+        this.bitmap = bitmap;
+        prescaledBitmap = null;
+        bitmapSampleSize = sampleSize;
+        bitmapSrcRect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
     }
 
-    private static Rect bitmapRect(Bitmap bitmap) {
-        return new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
+    private void cancelPendingLoad() {
+        if (pendingLoad != null) {
+            pendingLoad.cancel();
+            pendingLoad = null;
+        }
     }
 
-    private void rebuildFitter() {
-        fitter = new ImageFitter(fitMode, gravity);
+    private final BitmapLoader.Callback loadCallback = new BitmapLoader.Callback() {
+        @Override
+        public void onBitmapLoaded(Bitmap bitmap, int sampleSize) {
+            if (metricsListener != null) {
+                metricsListener.onBitmapDecoded(ImageLayout.this, pendingLoad.getDecodeNanos(), sampleSize,
+                        BitmapCache.byteCount(bitmap), pendingLoad.isCacheHit());
+            }
+            pendingLoad = null;
+            // The coordinate space of the children does not depend on the bitmap,
+            // so there is no need to request a new layout
+            setBitmap(bitmap, sampleSize);
+            invalidate();
+        }
+
+        @Override
+        public void onBitmapLoadFailed(int sampleSize) {
+            // Allow the next measure pass to try again
+            pendingLoad = null;
+        }
+    };
+
+    private void updateFitter() {
+        fitter.setFitMode(fitMode);
+        fitter.setGravity(gravity);
+        measureCacheValid = false;
         requestLayout();
         invalidate();
     }
 
+    private void updateRatios() {
+        widthRatio = bitmapDestRect.width() / (float) imageWidth;
+        heightRatio = bitmapDestRect.height() / (float) imageHeight;
+        childWidthRatio = widthRatio * layoutZoomScale;
+        childHeightRatio = heightRatio * layoutZoomScale;
+        childOriginX = bitmapDestRect.left * layoutZoomScale + layoutZoomTranslateX;
+        childOriginY = bitmapDestRect.top * layoutZoomScale + layoutZoomTranslateY;
+    }
+
     private int transformWidthFromBitmapToView(int w) {
-        float widthRatio = bitmapDestRect.width() / (float) imageWidth;
-        return (int) (w * widthRatio);
+        if (precisePlacement) {
+            return FitEngine.transformLengthPrecise(w, childWidthRatio);
+        }
+        return FitEngine.transformLength(w, childWidthRatio);
     }
 
     private int transformHeightFromBitmapToView(int h) {
-        float heightRatio = bitmapDestRect.height() / (float) imageHeight;
-        return (int) (h * heightRatio);
+        if (precisePlacement) {
+            return FitEngine.transformLengthPrecise(h, childHeightRatio);
+        }
+        return FitEngine.transformLength(h, childHeightRatio);
     }
 
     private int transformXFromBitmapToView(int x) {
-        float widthRatio = bitmapDestRect.width() / (float) imageWidth;
-        return bitmapDestRect.left + (int) (x * widthRatio);
+        if (precisePlacement) {
+            return FitEngine.transformCoordinatePrecise(x, childOriginX, childWidthRatio);
+        }
+        return FitEngine.transformCoordinate(x, Math.round(childOriginX), childWidthRatio);
     }
 
     private int transformYFromBitmapToView(int y) {
-        float heightRatio = bitmapDestRect.height() / (float) imageHeight;
-        return bitmapDestRect.top + (int) (y * heightRatio);
+        if (precisePlacement) {
+            return FitEngine.transformCoordinatePrecise(y, childOriginY, childHeightRatio);
+        }
+        return FitEngine.transformCoordinate(y, Math.round(childOriginY), childHeightRatio);
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
-        canvas.drawBitmap(bitmap, bitmapSrcRect, bitmapDestRect, null);
+        boolean zoomed = zoomScale != 1 || zoomTranslateX != 0 || zoomTranslateY != 0;
+        int saveCount = 0;
+        if (zoomed) {
+            saveCount = canvas.save();
+            canvas.translate(zoomTranslateX, zoomTranslateY);
+            canvas.scale(zoomScale, zoomScale);
+        }
+        boolean layersDrawn = false;
+        if (tileRenderer != null) {
+            if (bitmap != null) {
+                // Preview of a progressive load, drawn under the tiles
+                drawBitmap(canvas);
+            }
+            if (getTileVisibleRect(canvas, clipRect)) {
+                tileRenderer.draw(canvas, bitmapDestRect, clipRect, bitmapSampleSize, bitmapPaint);
+            }
+        }
+        else if (drawableRasterizer != null && zoomScale != 1) {
+            // A rendering at the zoomed size could be huge
+            drawableRasterizer.draw(canvas, bitmapDestRect);
+        }
+        else if (bitmap != null) {
+            layersDrawn = drawBitmap(canvas);
+        }
+        else if (placeholder != null) {
+            placeholder.setBounds(bitmapDestRect);
+            placeholder.draw(canvas);
+        }
+        if (!layersDrawn) {
+            drawLayers(canvas);
+        }
+        if (zoomed) {
+            canvas.restoreToCount(saveCount);
+        }
+        markers.draw(canvas, viewOriginX(), viewOriginY(), zoomScale * widthRatio, zoomScale * heightRatio);
         super.onDraw(canvas);
     }
 
+    /**
+     * Draws the background bitmap, and returns true if the layers were drawn along with
+     * it because they have been flattened
+     */
+    private boolean drawBitmap(Canvas canvas) {
+        int destWidth = bitmapDestRect.width();
+        int destHeight = bitmapDestRect.height();
+        // Tiles would be drawn over the flattened layers
+        boolean flatten = layerFlattening && !layers.isEmpty() && tileRenderer == null;
+        // The prescaled copy would be blurry if scaled up by the zoom, rendered drawables
+        // already have the size of the destination, and with tiles the bitmap is just a
+        // low-resolution preview which is not worth a full-size copy
+        boolean prescale = prescaling && drawableRasterizer == null && tileRenderer == null;
+        if ((prescale || flatten) && zoomScale == 1) {
+            boolean stable = destWidth == lastDrawnDestWidth && destHeight == lastDrawnDestHeight;
+            lastDrawnDestWidth = destWidth;
+            lastDrawnDestHeight = destHeight;
+            if (prescaledBitmap != null && (prescaledBitmap.getWidth() != destWidth || prescaledBitmap.getHeight() != destHeight)) {
+                prescaledBitmap = null;
+            }
+            if (prescaledBitmap == null && stable && destWidth > 0 && destHeight > 0) {
+                if (flatten) {
+                    prescaledBitmap = createFlattenedBitmap(destWidth, destHeight);
+                }
+                else {
+                    prescaledBitmap = Bitmap.createScaledBitmap(bitmap, destWidth, destHeight, bitmapPaint.isFilterBitmap());
+                }
+            }
+            if (prescaledBitmap != null) {
+                canvas.drawBitmap(prescaledBitmap, bitmapDestRect.left, bitmapDestRect.top, bitmapPaint);
+                return flatten;
+            }
+        }
+        canvas.drawBitmap(bitmap, bitmapSrcRect, bitmapDestRect, bitmapPaint);
+        return false;
+    }
+
+    private Bitmap createFlattenedBitmap(int width, int height) {
+        Bitmap result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(result);
+        canvas.translate(-bitmapDestRect.left, -bitmapDestRect.top);
+        canvas.drawBitmap(bitmap, bitmapSrcRect, bitmapDestRect, bitmapPaint);
+        drawLayers(canvas);
+        return result;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        getViewTreeObserver().addOnScrollChangedListener(scrollListener);
+        if (hasImage() && measureCacheValid) {
+            // Acquire again the bitmaps released when detached
+            ensureBitmapResolution();
+            ensureLayersResolution();
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        getViewTreeObserver().removeOnScrollChangedListener(scrollListener);
+        if (fitAnimator.cancel()) {
+            // Jump to the end, as no more frames will be posted
+            onFitAnimationEnd();
+        }
+        releaseBitmapsWhileDetached();
+    }
+
+    /**
+     * Hands back all the bitmaps of this layout, so that a layout which is thrown away
+     * without being cleared does not keep them pinned in the cache. They are acquired
+     * (or decoded) again when the layout is attached.
+     */
+    private void releaseBitmapsWhileDetached() {
+        cancelPendingLoad();
+        if (bitmap != null) {
+            BitmapDecoder.release(bitmap);
+            bitmap = null;
+        }
+        bitmapSampleSize = 0;
+        prescaledBitmap = null;
+        if (drawableRasterizer != null) {
+            drawableRasterizer.release();
+        }
+        for (int i = 0, N = layers.size(); i < N; ++i) {
+            layers.get(i).release();
+        }
+        layersSampleSize = 0;
+        if (tileRenderer != null) {
+            tileRenderer.evictAllTiles();
+        }
+    }
+
     @Override
     protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        Tracing.begin("ImageLayout#layout");
+        long start = metricsListener != null ? System.nanoTime() : 0;
+        if (recycler != null) {
+            populateFromAdapter();
+        }
         int N = getChildCount();
         for (int i = 0; i < N; ++i) {
             View child = getChildAt(i);
             LayoutParams layoutParams = (LayoutParams) child.getLayoutParams();
+            layoutParams.indexInParent = i;
+            if (layoutParams.culled && child.getLeft() == 0 && child.getTop() == 0
+                    && child.getRight() == 0 && child.getBottom() == 0) {
+                continue;
+            }
             child.layout(layoutParams.transformedRect.left, layoutParams.transformedRect.top, layoutParams.transformedRect.right, layoutParams.transformedRect.bottom);
         }
+        if (childIndex != null) {
+            updateChildIndex();
+        }
+        applyChildTransforms();
+        Tracing.end();
+        if (metricsListener != null) {
+            metricsListener.onLayout(this, System.nanoTime() - start, N);
+        }
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        Tracing.begin("ImageLayout#draw");
+        long start = metricsListener != null ? System.nanoTime() : 0;
+        super.draw(canvas);
+        Tracing.end();
+        if (metricsListener != null) {
+            metricsListener.onDraw(this, System.nanoTime() - start, getChildCount());
+        }
+    }
+
+    private void updateChildIndex() {
+        int width = getWidth(), height = getHeight();
+        if (childIndex.needsRebuild(width, height)) {
+            childIndex.rebuild(width, height);
+            return;
+        }
+        // Only the children whose layout rect has changed are moved
+        int N = getChildCount();
+        for (int i = 0; i < N; ++i) {
+            View child = getChildAt(i);
+            childIndex.update(child, (LayoutParams) child.getLayoutParams());
+        }
+    }
+
+    @Override
+    protected void dispatchDraw(Canvas canvas) {
+        if (childIndex != null) {
+            ++drawStamp;
+            canvas.getClipBounds(clipRect);
+            if (childTransformsApplied) {
+                // Children are indexed by their layout bounds, before the zoom
+                float scale = childScale();
+                float offsetX = childOffsetX(), offsetY = childOffsetY();
+                clipRect.set((int) Math.floor((clipRect.left - offsetX) / scale),
+                             (int) Math.floor((clipRect.top - offsetY) / scale),
+                             (int) Math.ceil((clipRect.right - offsetX) / scale),
+                             (int) Math.ceil((clipRect.bottom - offsetY) / scale));
+            }
+            childIndex.markVisible(clipRect, drawStamp);
+        }
+        super.dispatchDraw(canvas);
+    }
+
+    @Override
+    protected boolean drawChild(Canvas canvas, View child, long drawingTime) {
+        LayoutParams layoutParams = (LayoutParams) child.getLayoutParams();
+        if (layoutParams.culled) {
+            return false;
+        }
+        if (childIndex != null && layoutParams.visibleStamp != drawStamp) {
+            return false;
+        }
+        return super.drawChild(canvas, child, drawingTime);
+    }
+
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent ev) {
+        if (zoomGestureHandler != null) {
+            zoomGestureHandler.onDispatchTouchEvent();
+        }
+        if (childIndex == null) {
+            return super.dispatchTouchEvent(ev);
+        }
+        int action = ev.getAction() & MotionEvent.ACTION_MASK;
+        if (action == MotionEvent.ACTION_DOWN) {
+            touchTarget = null;
+            disallowIntercept = false;
+            if (!onInterceptTouchEvent(ev)) {
+                float x = ev.getX() + getScrollX(), y = ev.getY() + getScrollY();
+                if (childTransformsApplied) {
+                    x = (x - childOffsetX()) / childScale();
+                    y = (y - childOffsetY()) / childScale();
+                }
+                View child = childIndex.findChildAt((int) x, (int) y);
+                if (child != null && dispatchTouchEventToChild(child, ev)) {
+                    touchTarget = child;
+                    return true;
+                }
+            }
+        }
+        else if (touchTarget != null && !disallowIntercept && onInterceptTouchEvent(ev)) {
+            int oldAction = ev.getAction();
+            ev.setAction(MotionEvent.ACTION_CANCEL);
+            dispatchTouchEventToChild(touchTarget, ev);
+            ev.setAction(oldAction);
+            touchTarget = null;
+            return true;
+        }
+        boolean handled;
+        if (touchTarget != null) {
+            handled = dispatchTouchEventToChild(touchTarget, ev);
+        }
+        else {
+            handled = onTouchEvent(ev);
+        }
+        if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            touchTarget = null;
+        }
+        return handled;
+    }
+
+    private boolean dispatchTouchEventToChild(View child, MotionEvent ev) {
+        if (childTransformsApplied) {
+            float scale = childScale();
+            touchMatrix.setTranslate(getScrollX() - (scale * child.getLeft() + childOffsetX()),
+                                     getScrollY() - (scale * child.getTop() + childOffsetY()));
+            touchMatrix.postScale(1 / scale, 1 / scale);
+            MotionEvent transformedEvent = MotionEvent.obtain(ev);
+            transformedEvent.transform(touchMatrix);
+            boolean handled = child.dispatchTouchEvent(transformedEvent);
+            transformedEvent.recycle();
+            return handled;
+        }
+        float offsetX = getScrollX() - child.getLeft();
+        float offsetY = getScrollY() - child.getTop();
+        ev.offsetLocation(offsetX, offsetY);
+        boolean handled = child.dispatchTouchEvent(ev);
+        ev.offsetLocation(-offsetX, -offsetY);
+        return handled;
+    }
+
+    @Override
+    public void requestDisallowInterceptTouchEvent(boolean disallowIntercept) {
+        this.disallowIntercept = disallowIntercept;
+        super.requestDisallowInterceptTouchEvent(disallowIntercept);
     }
 
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        Tracing.begin("ImageLayout#measure");
+        long start = metricsListener != null ? System.nanoTime() : 0;
+        lastFitNanos = 0;
+        if (!isMeasureCacheValid(widthMeasureSpec, heightMeasureSpec)) {
+            measureImage(widthMeasureSpec, heightMeasureSpec);
+        }
+        setMeasuredDimension(lastMeasuredWidth, lastMeasuredHeight);
+
+        int N = getChildCount();
+        int measuredCount = 0;
+        if (transformBatch != null) {
+            measuredCount = measureChildrenBatched();
+        }
+        else {
+            for (int i = 0; i < N; ++i) {
+                View child = getChildAt(i);
+                if (measureChild(child)) {
+                    ++measuredCount;
+                }
+            }
+        }
+        Tracing.end();
+        if (metricsListener != null) {
+            metricsListener.onMeasure(this, System.nanoTime() - start, lastFitNanos, N, measuredCount);
+        }
+    }
+
+    private boolean isMeasureCacheValid(int widthMeasureSpec, int heightMeasureSpec) {
+        return measureCacheValid
+                && lastWidthMeasureSpec == widthMeasureSpec && lastHeightMeasureSpec == heightMeasureSpec
+                && lastPaddingLeft == getPaddingLeft() && lastPaddingTop == getPaddingTop()
+                && lastPaddingRight == getPaddingRight() && lastPaddingBottom == getPaddingBottom();
+    }
+
+    private void measureImage(int widthMeasureSpec, int heightMeasureSpec) {
         int widthMode = MeasureSpec.getMode(widthMeasureSpec);
         int heightMode = MeasureSpec.getMode(heightMeasureSpec);
         int widthSpec = MeasureSpec.getSize(widthMeasureSpec);
@@ -223,8 +2040,10 @@ public class ImageLayout extends ViewGroup {
         int height = heightSpec;
         boolean isExactWidth = widthMode == MeasureSpec.EXACTLY;
         boolean isExactHeight = heightMode == MeasureSpec.EXACTLY;
-        float bitmapAspectRatio = (bitmap.getWidth() + getPaddingLeft() + getPaddingRight())
-                                    / ((float)bitmap.getHeight() + getPaddingTop() + getPaddingBottom());
+        int bitmapWidth = getSourceWidth();
+        int bitmapHeight = getSourceHeight();
+        float bitmapAspectRatio = (bitmapWidth + getPaddingLeft() + getPaddingRight())
+                                    / ((float)bitmapHeight + getPaddingTop() + getPaddingBottom());
         if (isExactWidth && !isExactHeight) {
             height = (int)(width / bitmapAspectRatio);
             if (heightMode == MeasureSpec.AT_MOST && height > heightSpec) {
@@ -237,54 +2056,196 @@ public class ImageLayout extends ViewGroup {
                 width = widthSpec;
             }
         }
-        setMeasuredDimension(width, height);
+        lastMeasuredWidth = width;
+        lastMeasuredHeight = height;
 
+        int oldLeft = bitmapDestRect.left, oldTop = bitmapDestRect.top;
+        float oldWidthRatio = widthRatio, oldHeightRatio = heightRatio;
         int effectiveWidth = width - getPaddingLeft() - getPaddingRight();
         int effectiveHeight = height - getPaddingTop() - getPaddingBottom();
-        bitmapDestRect = fitter.fit(bitmap, effectiveWidth, effectiveHeight);
+        Tracing.begin("ImageLayout#fit");
+        long fitStart = metricsListener != null ? System.nanoTime() : 0;
+        fitter.fit(bitmapWidth, bitmapHeight, effectiveWidth, effectiveHeight, bitmapDestRect);
         adjustBitmapRectForPadding();
+        updateRatios();
+        if (metricsListener != null) {
+            lastFitNanos = System.nanoTime() - fitStart;
+        }
+        Tracing.end();
+        ensureBitmapResolution();
+        ensureLayersResolution();
+        if (oldLeft != bitmapDestRect.left || oldTop != bitmapDestRect.top
+                || oldWidthRatio != widthRatio || oldHeightRatio != heightRatio) {
+            ++fitGeneration;
+        }
+        if (cropCulling && updateCullRect()) {
+            // The same fit can crop a different part of the image if the size changes
+            ++fitGeneration;
+        }
 
-        int N = getChildCount();
-        for (int i = 0; i < N; ++i) {
-            View child = getChildAt(i);
-            measureChild(child);
+        lastWidthMeasureSpec = widthMeasureSpec;
+        lastHeightMeasureSpec = heightMeasureSpec;
+        lastPaddingLeft = getPaddingLeft();
+        lastPaddingTop = getPaddingTop();
+        lastPaddingRight = getPaddingRight();
+        lastPaddingBottom = getPaddingBottom();
+        measureCacheValid = true;
+    }
+
+    /**
+     * Computes the part of the image covered by the view at the fitted scale. Returns true
+     * if it has changed.
+     */
+    private boolean updateCullRect() {
+        int left, top, right, bottom;
+        if (widthRatio == 0 || heightRatio == 0) {
+            left = top = right = bottom = 0;
+        }
+        else {
+            // Rounded outwards, so that children on the border are never culled
+            left = (int) Math.floor(-bitmapDestRect.left / widthRatio);
+            top = (int) Math.floor(-bitmapDestRect.top / heightRatio);
+            right = (int) Math.ceil((lastMeasuredWidth - bitmapDestRect.left) / widthRatio);
+            bottom = (int) Math.ceil((lastMeasuredHeight - bitmapDestRect.top) / heightRatio);
         }
+        if (cullRect.left == left && cullRect.top == top && cullRect.right == right && cullRect.bottom == bottom) {
+            return false;
+        }
+        cullRect.set(left, top, right, bottom);
+        return true;
+    }
+
+    private boolean shouldCull(LayoutParams layoutParams) {
+        return cropCulling && measureCacheValid && layoutParams.isOutside(cullRect);
+    }
+
+    /**
+     * Skips a child which is in the cropped part of the image. It is laid out with empty
+     * bounds, and measured again once it becomes visible.
+     */
+    private void cullChild(LayoutParams layoutParams) {
+        layoutParams.culled = true;
+        layoutParams.transformedRect.setEmpty();
+        layoutParams.saveTransformState(fitGeneration);
     }
 
-    private void measureChild(View child) {
+    /**
+     * Measures a child and computes its layout rect, unless they are still valid.
+     * Returns true if the child had to be measured.
+     */
+    private boolean measureChild(View child) {
         LayoutParams layoutParams = (LayoutParams) child.getLayoutParams();
+        if (!child.isLayoutRequested() && layoutParams.isTransformCurrent(fitGeneration)) {
+            // Neither the child nor its position in the image have changed since
+            // the last pass, so its transformed rect is still valid
+            return false;
+        }
         checkChildLayoutParams(layoutParams);
+        if (shouldCull(layoutParams)) {
+            cullChild(layoutParams);
+            return false;
+        }
+        layoutParams.culled = false;
         int wspec = makeWidthSpec(layoutParams);
         int hspec = makeHeightSpec(layoutParams);
         child.measure(wspec, hspec);
+        computeChildRect(child, layoutParams);
+        layoutParams.saveTransformState(fitGeneration);
+        return true;
+    }
+
+    /**
+     * Same as calling {@link #measureChild(View)} for every child, but transforming the
+     * image coordinates of all the children which need it in a batch before measuring
+     * them. Returns the number of children that had to be measured.
+     */
+    private int measureChildrenBatched() {
+        ChildTransformBatch batch = transformBatch;
+        batch.clear();
+        for (int i = 0, N = getChildCount(); i < N; ++i) {
+            View child = getChildAt(i);
+            LayoutParams layoutParams = (LayoutParams) child.getLayoutParams();
+            if (!child.isLayoutRequested() && layoutParams.isTransformCurrent(fitGeneration)) {
+                continue;
+            }
+            checkChildLayoutParams(layoutParams);
+            if (shouldCull(layoutParams)) {
+                cullChild(layoutParams);
+                continue;
+            }
+            layoutParams.culled = false;
+            batch.add(child, layoutParams);
+        }
+        int count = batch.size();
+        if (count == 0) {
+            return 0;
+        }
+        Tracing.begin("ImageLayout#transformChildren");
+        batch.transform(childOriginX, childOriginY, childWidthRatio, childHeightRatio, precisePlacement,
+                parallelTransformThreshold);
+        Tracing.end();
+        for (int i = 0; i < count; ++i) {
+            View child = batch.getChild(i);
+            LayoutParams layoutParams = (LayoutParams) child.getLayoutParams();
+            int wspec = makeSpec(layoutParams.maxWidth, layoutParams.width,
+                    batch.get(i, FitEngine.CHILD_MAX_WIDTH), batch.get(i, FitEngine.CHILD_WIDTH));
+            int hspec = makeSpec(layoutParams.maxHeight, layoutParams.height,
+                    batch.get(i, FitEngine.CHILD_MAX_HEIGHT), batch.get(i, FitEngine.CHILD_HEIGHT));
+            child.measure(wspec, hspec);
+            setChildRect(child, layoutParams,
+                    batch.get(i, FitEngine.CHILD_LEFT), batch.get(i, FitEngine.CHILD_RIGHT),
+                    batch.get(i, FitEngine.CHILD_CENTER_X), batch.get(i, FitEngine.CHILD_TOP),
+                    batch.get(i, FitEngine.CHILD_BOTTOM), batch.get(i, FitEngine.CHILD_CENTER_Y));
+            layoutParams.saveTransformState(fitGeneration);
+        }
+        batch.clear();
+        return count;
+    }
+
+    /**
+     * Computes the layout rect of a child from its measured size and its position in
+     * image coordinates
+     */
+    private void computeChildRect(View child, LayoutParams layoutParams) {
+        int left = layoutParams.left != -1 ? transformXFromBitmapToView(layoutParams.left) : 0;
+        int right = layoutParams.right != -1 ? transformXFromBitmapToView(layoutParams.right) : 0;
+        int cx = layoutParams.centerX != -1 ? transformXFromBitmapToView(layoutParams.centerX) : 0;
+        int top = layoutParams.top != -1 ? transformYFromBitmapToView(layoutParams.top) : 0;
+        int bottom = layoutParams.bottom != -1 ? transformYFromBitmapToView(layoutParams.bottom) : 0;
+        int cy = layoutParams.centerY != -1 ? transformYFromBitmapToView(layoutParams.centerY) : 0;
+        setChildRect(child, layoutParams, left, right, cx, top, bottom, cy);
+    }
+
+    /**
+     * Computes the layout rect of a child from its measured size and the view coordinates
+     * of its reference points. Which of them are used depends on which ones are set in
+     * image coordinates.
+     */
+    private static void setChildRect(View child, LayoutParams layoutParams, int transformedLeft,
+            int transformedRight, int transformedCenterX, int transformedTop, int transformedBottom,
+            int transformedCenterY) {
         int left = 0, width = child.getMeasuredWidth();
         if (layoutParams.left != -1) {
-            left = transformXFromBitmapToView(layoutParams.left);
+            left = transformedLeft;
             if (layoutParams.right != -1) {
-                int right = transformXFromBitmapToView(layoutParams.right);
-                width = right - left;
+                width = transformedRight - left;
             }
         } else if (layoutParams.right != -1) {
-            int right = transformXFromBitmapToView(layoutParams.right);
-            left = right - width;
+            left = transformedRight - width;
         } else if (layoutParams.centerX != -1) {
-            int cx = transformXFromBitmapToView(layoutParams.centerX);
-            left = cx - width / 2;
+            left = transformedCenterX - width / 2;
         }
 
         int top = 0, height = child.getMeasuredHeight();
         if (layoutParams.top != -1) {
-            top = transformYFromBitmapToView(layoutParams.top);
+            top = transformedTop;
             if (layoutParams.bottom != -1) {
-                int bottom = transformYFromBitmapToView(layoutParams.bottom);
-                height = bottom - top;
+                height = transformedBottom - top;
             }
         } else if (layoutParams.bottom != -1) {
-            int bottom = transformYFromBitmapToView(layoutParams.bottom);
-            top = bottom - height;
+            top = transformedBottom - height;
         } else if (layoutParams.centerY != -1) {
-            int cy = transformYFromBitmapToView(layoutParams.centerY);
-            top = cy - height / 2;
+            top = transformedCenterY - height / 2;
         }
         layoutParams.transformedRect.set(left, top, left + width, top + height);
     }
@@ -302,7 +2263,14 @@ public class ImageLayout extends ViewGroup {
             int height = transformHeightFromBitmapToView(layoutParams.maxHeight);
             hspec = MeasureSpec.makeMeasureSpec(height, MeasureSpec.AT_MOST);
         } else if (layoutParams.height != LayoutParams.WRAP_CONTENT) {
-            int height = transformHeightFromBitmapToView(layoutParams.height);
+            int height;
+            if (precisePlacement && layoutParams.height >= 0) {
+                height = FitEngine.transformSizePrecise(layoutParams.top, layoutParams.bottom, layoutParams.height,
+                        childOriginY, childHeightRatio);
+            }
+            else {
+                height = transformHeightFromBitmapToView(layoutParams.height);
+            }
             hspec = MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY);
         }
         return hspec;
@@ -314,12 +2282,33 @@ public class ImageLayout extends ViewGroup {
             int maxWidth = transformWidthFromBitmapToView(layoutParams.maxWidth);
             wspec = MeasureSpec.makeMeasureSpec(maxWidth, MeasureSpec.AT_MOST);
         } else if (layoutParams.width != LayoutParams.WRAP_CONTENT) {
-            int width = transformWidthFromBitmapToView(layoutParams.width);
+            int width;
+            if (precisePlacement && layoutParams.width >= 0) {
+                width = FitEngine.transformSizePrecise(layoutParams.left, layoutParams.right, layoutParams.width,
+                        childOriginX, childWidthRatio);
+            }
+            else {
+                width = transformWidthFromBitmapToView(layoutParams.width);
+            }
             wspec = MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY);
         }
         return wspec;
     }
 
+    /**
+     * Same as {@link #makeWidthSpec(LayoutParams)} and {@link #makeHeightSpec(LayoutParams)},
+     * but with the sizes already transformed to view coordinates
+     */
+    private static int makeSpec(int maxSize, int size, int transformedMaxSize, int transformedSize) {
+        if (maxSize != -1) {
+            return MeasureSpec.makeMeasureSpec(transformedMaxSize, MeasureSpec.AT_MOST);
+        }
+        if (size != LayoutParams.WRAP_CONTENT) {
+            return MeasureSpec.makeMeasureSpec(transformedSize, MeasureSpec.EXACTLY);
+        }
+        return MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+    }
+
     private void checkChildLayoutParams(LayoutParams layoutParams) {
     }
 
@@ -330,6 +2319,20 @@ public class ImageLayout extends ViewGroup {
         public int centerX = -1, centerY = -1;
         // In view coords
         Rect transformedRect = new Rect();
+        // Values of the above fields when transformedRect was last computed
+        private int transformedFitGeneration = -1;
+        private int transformedWidth, transformedHeight, transformedMaxWidth, transformedMaxHeight;
+        private int transformedLeft, transformedTop, transformedRight, transformedBottom;
+        private int transformedCenterX, transformedCenterY;
+        // Whether the child is in the cropped part of the image and has been skipped
+        boolean culled;
+        // View type, for children created by an adapter
+        int viewType;
+        // Bookkeeping of the spatial index
+        boolean indexed;
+        final Rect indexedRect = new Rect();
+        int indexInParent;
+        int visibleStamp;
 
         public LayoutParams() {
             this(null, null);
@@ -389,6 +2392,106 @@ public class ImageLayout extends ViewGroup {
         LayoutParams(ViewGroup.LayoutParams source) {
             super(source);
         }
+
+        void resetImageCoordinates() {
+            width = height = WRAP_CONTENT;
+            maxWidth = maxHeight = -1;
+            left = top = right = bottom = -1;
+            centerX = centerY = -1;
+            transformedFitGeneration = -1;
+        }
+
+        /**
+         * Moves the reference point of the child to the given image coordinates
+         * @see ImageLayout#moveChildren(View[], int[], int)
+         */
+        void moveTo(int x, int y) {
+            if (left != -1) {
+                if (right != -1) {
+                    right += x - left;
+                }
+                left = x;
+            }
+            else if (right != -1) {
+                right = x;
+            }
+            else if (centerX != -1) {
+                centerX = x;
+            }
+            else {
+                left = x;
+            }
+            if (top != -1) {
+                if (bottom != -1) {
+                    bottom += y - top;
+                }
+                top = y;
+            }
+            else if (bottom != -1) {
+                bottom = y;
+            }
+            else if (centerY != -1) {
+                centerY = y;
+            }
+            else {
+                top = y;
+            }
+        }
+
+        /**
+         * Returns true if the bounds of the child in image coordinates are known to be
+         * outside the given rect, in image coordinates too
+         */
+        boolean isOutside(Rect imageRect) {
+            int wspan = maxWidth != -1 ? maxWidth : width;
+            int hspan = maxHeight != -1 ? maxHeight : height;
+            return isOutside(left, right, centerX, wspan, imageRect.left, imageRect.right)
+                    || isOutside(top, bottom, centerY, hspan, imageRect.top, imageRect.bottom);
+        }
+
+        /**
+         * Checks one axis of {@link #isOutside(Rect)}. span is an upper bound of the size of
+         * the child, or a negative value if it is unknown.
+         */
+        private static boolean isOutside(int start, int end, int center, int span, int min, int max) {
+            if (start != -1) {
+                int hi = end != -1 ? end : span >= 0 ? start + span : Integer.MAX_VALUE;
+                return start > max || hi < min;
+            }
+            if (end != -1) {
+                int lo = span >= 0 ? end - span : Integer.MIN_VALUE;
+                return end < min || lo > max;
+            }
+            if (center != -1 && span >= 0) {
+                int half = (span + 1) / 2;
+                return center + half < min || center - half > max;
+            }
+            // Either unknown or not positioned in image coordinates
+            return false;
+        }
+
+        boolean isTransformCurrent(int fitGeneration) {
+            return transformedFitGeneration == fitGeneration
+                    && transformedWidth == width && transformedHeight == height
+                    && transformedMaxWidth == maxWidth && transformedMaxHeight == maxHeight
+                    && transformedLeft == left && transformedTop == top
+                    && transformedRight == right && transformedBottom == bottom
+                    && transformedCenterX == centerX && transformedCenterY == centerY;
+        }
+
+        void saveTransformState(int fitGeneration) {
+            transformedFitGeneration = fitGeneration;
+            transformedWidth = width;
+            transformedHeight = height;
+            transformedMaxWidth = maxWidth;
+            transformedMaxHeight = maxHeight;
+            transformedLeft = left;
+            transformedTop = top;
+            transformedRight = right;
+            transformedBottom = bottom;
+            transformedCenterX = centerX;
+            transformedCenterY = centerY;
+        }
     }
 
     @Override
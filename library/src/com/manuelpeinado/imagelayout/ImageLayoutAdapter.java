@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.graphics.Rect;
+import android.view.View;
+
+/**
+ * Supplies the children of an {@link ImageLayout} on demand. The layout only creates views
+ * for the items whose bounds intersect the visible part of the image, and recycles the
+ * views of the items that scroll out of view so that they can be rebound to other items
+ * of the same type.
+ * @see ImageLayout#setAdapter(ImageLayoutAdapter)
+ */
+public abstract class ImageLayoutAdapter {
+    private final DataSetObservable dataSetObservable = new DataSetObservable();
+
+    /**
+     * Returns the number of items
+     */
+    public abstract int getCount();
+
+    /**
+     * Computes the area occupied by an item, in image coordinates. It is used to decide
+     * whether the item is visible, so it should include the whole extent of its view.
+     */
+    public abstract void getItemBounds(int position, Rect outBounds);
+
+    /**
+     * Sets the image coordinates of the view of an item. All the coordinates of the given
+     * params are unset (-1) when this method is called.
+     */
+    public abstract void getItemLayoutParams(int position, ImageLayout.LayoutParams outParams);
+
+    /**
+     * Returns the view that displays an item
+     * @param convertView A previously used view of the same type that should be reused
+     *        if possible, or null
+     */
+    public abstract View getView(int position, View convertView, ImageLayout parent);
+
+    /**
+     * Returns the number of types of views created by {@link #getView}
+     */
+    public int getViewTypeCount() {
+        return 1;
+    }
+
+    /**
+     * Returns the type of view created by {@link #getView} for an item, between 0 and
+     * {@link #getViewTypeCount()} - 1
+     */
+    public int getItemViewType(int position) {
+        return 0;
+    }
+
+    public void registerDataSetObserver(DataSetObserver observer) {
+        dataSetObservable.registerObserver(observer);
+    }
+
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        dataSetObservable.unregisterObserver(observer);
+    }
+
+    /**
+     * Notifies the attached layouts that the items have changed and their views must be
+     * rebound
+     */
+    public void notifyDataSetChanged() {
+        dataSetObservable.notifyChanged();
+    }
+}
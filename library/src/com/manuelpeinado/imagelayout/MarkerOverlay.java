@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import android.graphics.Canvas;
+
+/**
+ * Draws and hit-tests the markers of an {@link ImageLayout}. Markers are stored as pairs
+ * of image coordinates in a float array supplied by the client, so no object is allocated
+ * per marker.
+ */
+class MarkerOverlay {
+    private float[] coords;
+    private int count;
+    private ImageLayout.MarkerRenderer renderer;
+    private float hitRadius;
+
+    void setMarkers(float[] coords, int count, ImageLayout.MarkerRenderer renderer) {
+        if (coords != null && coords.length < count * 2) {
+            throw new IllegalArgumentException("Marker array is too small for " + count + " markers");
+        }
+        this.coords = coords;
+        this.count = coords == null ? 0 : count;
+        this.renderer = renderer;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    void setHitRadius(float hitRadius) {
+        this.hitRadius = hitRadius;
+    }
+
+    float getHitRadius() {
+        return hitRadius;
+    }
+
+    /**
+     * Draws the markers. The position of each marker in view coordinates is computed as
+     * origin + coordinate * ratio.
+     */
+    void draw(Canvas canvas, float originX, float originY, float widthRatio, float heightRatio) {
+        if (renderer == null) {
+            return;
+        }
+        for (int i = 0; i < count; ++i) {
+            float x = originX + coords[2 * i] * widthRatio;
+            float y = originY + coords[2 * i + 1] * heightRatio;
+            renderer.drawMarker(canvas, i, x, y);
+        }
+    }
+
+    /**
+     * Returns the index of the marker closest to the given point (in view coordinates),
+     * provided it is within the hit radius, or -1 otherwise
+     */
+    int findMarkerAt(float x, float y, float originX, float originY, float widthRatio, float heightRatio) {
+        int result = -1;
+        float bestDistance = hitRadius * hitRadius;
+        for (int i = 0; i < count; ++i) {
+            float dx = originX + coords[2 * i] * widthRatio - x;
+            float dy = originY + coords[2 * i + 1] * heightRatio - y;
+            float distance = dx * dx + dy * dy;
+            if (distance <= bestDistance) {
+                bestDistance = distance;
+                result = i;
+            }
+        }
+        return result;
+    }
+}
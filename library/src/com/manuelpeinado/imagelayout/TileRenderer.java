@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * Draws a huge image as a grid of tiles which are decoded on demand. Only the tiles that
+ * intersect the visible part of the image are requested. Missing tiles are decoded in
+ * the decoder threads of {@link BitmapLoader}, and the view is invalidated as each of
+ * them arrives. Decoded tiles are kept in an LRU cache bounded by a number of bytes, so
+ * that tiles which scroll back into view, or which fall outside the clip of a partial
+ * redraw, are not decoded again.
+ * <p>Requires API level 10 (BitmapRegionDecoder).
+ */
+class TileRenderer {
+    private static final String TAG = "ImageLayout";
+    /** Size of a tile, in pixels of the decoded (i.e., sampled) image */
+    private static final int TILE_SIZE = 256;
+
+    private final View owner;
+    private final BitmapRegionDecoder regionDecoder;
+    private final int rawWidth;
+    private final int rawHeight;
+    private final Bitmap.Config config;
+    private final int maxBytes;
+    // In access order, so that the least recently drawn tiles come first
+    private final LinkedHashMap<Long, Tile> tiles = new LinkedHashMap<Long, Tile>(16, 0.75f, true);
+    private final Map<Long, TileTask> pendingTasks = new HashMap<Long, TileTask>();
+    private final Rect visibleRect = new Rect();
+    private final Rect tileDestRect = new Rect();
+    private int cacheBytes;
+    private int drawPass;
+    // Guards the region decoder, which is used from the decoder threads
+    private final Object decoderLock = new Object();
+    private boolean released;
+
+    private static class Tile {
+        final Bitmap bitmap;
+        final Rect rawRect;
+        int lastDrawPass;
+
+        Tile(Bitmap bitmap, Rect rawRect) {
+            this.bitmap = bitmap;
+            this.rawRect = rawRect;
+        }
+    }
+
+    /**
+     * Decodes a tile in a decoder thread and hands it to the renderer in the main thread
+     */
+    private class TileTask implements Runnable {
+        private final Long key;
+        private final Rect rawRect;
+        private final int sampleSize;
+        private volatile boolean cancelled;
+
+        TileTask(Long key, Rect rawRect, int sampleSize) {
+            this.key = key;
+            this.rawRect = rawRect;
+            this.sampleSize = sampleSize;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = config;
+            Bitmap decoded = null;
+            try {
+                synchronized (decoderLock) {
+                    if (!released) {
+                        decoded = regionDecoder.decodeRegion(rawRect, options);
+                    }
+                }
+            }
+            catch (RuntimeException e) {
+                Log.w(TAG, "Could not decode tile", e);
+            }
+            catch (OutOfMemoryError e) {
+                Log.w(TAG, "Not enough memory to decode tile", e);
+            }
+            finally {
+                // Posted even on failure, so that the tile stops being pending
+                final Bitmap bitmap = decoded;
+                owner.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTileDecoded(TileTask.this, bitmap);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * @param maxBytes Budget of the tile cache. Tiles drawn in the last pass are never
+     *        evicted, so it is exceeded if they do not fit.
+     */
+    TileRenderer(View owner, BitmapDecoder decoder, int maxBytes) {
+        this.owner = owner;
+        this.maxBytes = maxBytes;
+        InputStream is = null;
+        try {
+            is = decoder.openStream();
+            regionDecoder = BitmapRegionDecoder.newInstance(is, false);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not create region decoder for bitmap", e);
+        }
+        finally {
+            if (is != null) {
+                BitmapDecoder.closeQuietly(is);
+            }
+        }
+        rawWidth = decoder.getRawWidth();
+        rawHeight = decoder.getRawHeight();
+        config = decoder.getPreferredConfig();
+    }
+
+    /**
+     * Draws the part of the image that falls inside both the given destination rect and
+     * the given visible rect (both in the coordinates of the canvas). Tiles which are not
+     * decoded yet are requested and skipped.
+     */
+    void draw(Canvas canvas, Rect destRect, Rect visible, int sampleSize, Paint paint) {
+        ++drawPass;
+        int destWidth = destRect.width();
+        int destHeight = destRect.height();
+        if (destWidth <= 0 || destHeight <= 0 || !visibleRect.setIntersect(destRect, visible)) {
+            return;
+        }
+
+        // Visible region, in raw image coordinates
+        int rawLeft = (int) ((long) (visibleRect.left - destRect.left) * rawWidth / destWidth);
+        int rawTop = (int) ((long) (visibleRect.top - destRect.top) * rawHeight / destHeight);
+        int rawRight = (int) ((long) (visibleRect.right - destRect.left) * rawWidth / destWidth);
+        int rawBottom = (int) ((long) (visibleRect.bottom - destRect.top) * rawHeight / destHeight);
+
+        int tileRawSize = TILE_SIZE * sampleSize;
+        int firstCol = Math.max(0, rawLeft / tileRawSize);
+        int firstRow = Math.max(0, rawTop / tileRawSize);
+        int lastCol = Math.min((rawWidth - 1) / tileRawSize, (rawRight - 1) / tileRawSize);
+        int lastRow = Math.min((rawHeight - 1) / tileRawSize, (rawBottom - 1) / tileRawSize);
+        for (int row = firstRow; row <= lastRow; ++row) {
+            for (int col = firstCol; col <= lastCol; ++col) {
+                Tile tile = obtainTile(sampleSize, row, col, tileRawSize);
+                if (tile == null) {
+                    continue;
+                }
+                tile.lastDrawPass = drawPass;
+                Rect r = tile.rawRect;
+                // Each edge is mapped independently so that adjacent tiles share exactly
+                // the same pixel boundary and no seams appear between them
+                tileDestRect.set(destRect.left + (int) ((long) r.left * destWidth / rawWidth),
+                                 destRect.top + (int) ((long) r.top * destHeight / rawHeight),
+                                 destRect.left + (int) ((long) r.right * destWidth / rawWidth),
+                                 destRect.top + (int) ((long) r.bottom * destHeight / rawHeight));
+                canvas.drawBitmap(tile.bitmap, null, tileDestRect, paint);
+            }
+        }
+        trimToSize();
+    }
+
+    /**
+     * Returns the given tile if it has been decoded, or requests it and returns null
+     */
+    private Tile obtainTile(int sampleSize, int row, int col, int tileRawSize) {
+        Long key = tileKey(sampleSize, row, col);
+        Tile tile = tiles.get(key);
+        if (tile != null || pendingTasks.containsKey(key)) {
+            return tile;
+        }
+        int left = col * tileRawSize;
+        int top = row * tileRawSize;
+        Rect rawRect = new Rect(left, top, Math.min(rawWidth, left + tileRawSize), Math.min(rawHeight, top + tileRawSize));
+        TileTask task = new TileTask(key, rawRect, sampleSize);
+        pendingTasks.put(key, task);
+        BitmapLoader.execute(task);
+        return null;
+    }
+
+    private void onTileDecoded(TileTask task, Bitmap bitmap) {
+        if (task.cancelled || pendingTasks.get(task.key) != task) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            return;
+        }
+        pendingTasks.remove(task.key);
+        if (bitmap == null) {
+            // Requested again by the next draw pass that needs it
+            return;
+        }
+        tiles.put(task.key, new Tile(bitmap, task.rawRect));
+        cacheBytes += BitmapCache.byteCount(bitmap);
+        owner.invalidate();
+    }
+
+    private static Long tileKey(int sampleSize, int row, int col) {
+        return ((long) sampleSize << 48) | ((long) row << 24) | col;
+    }
+
+    /**
+     * Evicts the least recently drawn tiles until the cache fits in its budget, sparing
+     * those drawn in the last pass
+     */
+    private void trimToSize() {
+        Iterator<Tile> it = tiles.values().iterator();
+        while (cacheBytes > maxBytes && it.hasNext()) {
+            Tile tile = it.next();
+            if (tile.lastDrawPass == drawPass) {
+                continue;
+            }
+            cacheBytes -= BitmapCache.byteCount(tile.bitmap);
+            tile.bitmap.recycle();
+            it.remove();
+        }
+    }
+
+    /**
+     * Frees the memory held by all decoded tiles and cancels the pending ones. The
+     * renderer can still be used afterwards.
+     */
+    void evictAllTiles() {
+        for (Tile tile : tiles.values()) {
+            tile.bitmap.recycle();
+        }
+        tiles.clear();
+        cacheBytes = 0;
+        for (TileTask task : pendingTasks.values()) {
+            task.cancelled = true;
+        }
+        pendingTasks.clear();
+    }
+
+    /**
+     * Frees all resources. The renderer cannot be used afterwards.
+     */
+    void release() {
+        evictAllTiles();
+        // Waits for the tile being decoded, if any
+        synchronized (decoderLock) {
+            released = true;
+            regionDecoder.recycle();
+        }
+    }
+}
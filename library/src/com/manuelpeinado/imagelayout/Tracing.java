@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Marks the phases of the work of an {@link ImageLayout} in systrace. Sections must be
+ * begun and ended in the same thread. Does nothing before API level 18.
+ */
+final class Tracing {
+    private static final boolean ENABLED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    private Tracing() {
+    }
+
+    static void begin(String sectionName) {
+        if (ENABLED) {
+            Trace.beginSection(sectionName);
+        }
+    }
+
+    static void end() {
+        if (ENABLED) {
+            Trace.endSection();
+        }
+    }
+}
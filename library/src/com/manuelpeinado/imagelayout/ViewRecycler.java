@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.graphics.Rect;
+import android.util.SparseArray;
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * Keeps the children of an {@link ImageLayout} in sync with the visible items of its
+ * {@link ImageLayoutAdapter}, recycling the views of items which are no longer visible
+ * through a scrap heap indexed by view type.
+ * <p>The bounds of the items are read once per data set and bucketed in a uniform grid,
+ * so that finding the visible items takes time proportional to the number of items near
+ * the viewport rather than to the total number of items.
+ */
+class ViewRecycler {
+    private final ImageLayout layout;
+    private ImageLayoutAdapter adapter;
+    private final SparseArray<View> activeViews = new SparseArray<View>();
+    private ArrayList<View>[] scrapViews;
+    private final Rect itemBounds = new Rect();
+    // Left, top, right and bottom of each item, in image coordinates
+    private int[] bounds = new int[0];
+    private int itemCount;
+    private boolean gridValid;
+    private int gridLeft, gridTop, cellWidth, cellHeight, cols, rows;
+    // The items of cell i are cellItems[cellStart[i]] to cellItems[cellStart[i + 1] - 1]
+    private int[] cellStart = new int[0];
+    private int[] cellItems = new int[0];
+    // Avoids visiting twice the items that span several cells
+    private int[] itemStamps = new int[0];
+    private int stamp;
+
+    ViewRecycler(ImageLayout layout) {
+        this.layout = layout;
+    }
+
+    @SuppressWarnings("unchecked")
+    void setAdapter(ImageLayoutAdapter adapter) {
+        recycleAll();
+        this.adapter = adapter;
+        scrapViews = new ArrayList[adapter.getViewTypeCount()];
+        for (int i = 0; i < scrapViews.length; ++i) {
+            scrapViews[i] = new ArrayList<View>();
+        }
+    }
+
+    /**
+     * Removes the views of the items that do not intersect the given rect, and creates
+     * (or rebinds) views for the items that do
+     * @param viewport The visible part of the image, in image coordinates
+     */
+    void populate(Rect viewport) {
+        if (!gridValid) {
+            buildGrid();
+        }
+        for (int i = activeViews.size() - 1; i >= 0; --i) {
+            int position = activeViews.keyAt(i);
+            if (position < itemCount && intersects(position, viewport)) {
+                continue;
+            }
+            recycle(activeViews.valueAt(i));
+            activeViews.delete(position);
+        }
+        if (itemCount == 0 || viewport.isEmpty()) {
+            return;
+        }
+        int firstCol = clampCol(viewport.left), lastCol = clampCol(viewport.right - 1);
+        int firstRow = clampRow(viewport.top), lastRow = clampRow(viewport.bottom - 1);
+        ++stamp;
+        for (int row = firstRow; row <= lastRow; ++row) {
+            for (int col = firstCol; col <= lastCol; ++col) {
+                int cell = row * cols + col;
+                for (int i = cellStart[cell], end = cellStart[cell + 1]; i < end; ++i) {
+                    int position = cellItems[i];
+                    if (itemStamps[position] == stamp) {
+                        continue;
+                    }
+                    itemStamps[position] = stamp;
+                    if (activeViews.get(position) == null && intersects(position, viewport)) {
+                        activeViews.put(position, obtainView(position));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves all the active views to the scrap heap, e.g., because the data set has changed
+     */
+    void recycleAll() {
+        for (int i = activeViews.size() - 1; i >= 0; --i) {
+            recycle(activeViews.valueAt(i));
+        }
+        activeViews.clear();
+        // The bounds of the items are read again on the next call to populate
+        gridValid = false;
+    }
+
+    private boolean intersects(int position, Rect r) {
+        int i = 4 * position;
+        return bounds[i] < r.right && r.left < bounds[i + 2] && bounds[i + 1] < r.bottom && r.top < bounds[i + 3];
+    }
+
+    private void buildGrid() {
+        gridValid = true;
+        itemCount = adapter.getCount();
+        if (bounds.length < 4 * itemCount) {
+            bounds = new int[4 * itemCount];
+            itemStamps = new int[itemCount];
+        }
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int position = 0; position < itemCount; ++position) {
+            adapter.getItemBounds(position, itemBounds);
+            int i = 4 * position;
+            bounds[i] = itemBounds.left;
+            bounds[i + 1] = itemBounds.top;
+            bounds[i + 2] = itemBounds.right;
+            bounds[i + 3] = itemBounds.bottom;
+            minX = Math.min(minX, itemBounds.left);
+            minY = Math.min(minY, itemBounds.top);
+            maxX = Math.max(maxX, itemBounds.right);
+            maxY = Math.max(maxY, itemBounds.bottom);
+        }
+        if (itemCount == 0) {
+            return;
+        }
+        // About one item per cell if they are evenly spread
+        int side = Math.max(1, (int) Math.sqrt(itemCount));
+        gridLeft = minX;
+        gridTop = minY;
+        cols = rows = side;
+        cellWidth = Math.max(1, (maxX - minX + side - 1) / side);
+        cellHeight = Math.max(1, (maxY - minY + side - 1) / side);
+
+        // Count the items of each cell, and then store them contiguously
+        int cellCount = cols * rows;
+        if (cellStart.length < cellCount + 1) {
+            cellStart = new int[cellCount + 1];
+        }
+        else {
+            Arrays.fill(cellStart, 0);
+        }
+        for (int position = 0; position < itemCount; ++position) {
+            int i = 4 * position;
+            for (int row = clampRow(bounds[i + 1]), lastRow = clampRow(bounds[i + 3] - 1); row <= lastRow; ++row) {
+                for (int col = clampCol(bounds[i]), lastCol = clampCol(bounds[i + 2] - 1); col <= lastCol; ++col) {
+                    ++cellStart[row * cols + col + 1];
+                }
+            }
+        }
+        for (int cell = 0; cell < cellCount; ++cell) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        if (cellItems.length < cellStart[cellCount]) {
+            cellItems = new int[cellStart[cellCount]];
+        }
+        int[] next = new int[cellCount];
+        System.arraycopy(cellStart, 0, next, 0, cellCount);
+        for (int position = 0; position < itemCount; ++position) {
+            int i = 4 * position;
+            for (int row = clampRow(bounds[i + 1]), lastRow = clampRow(bounds[i + 3] - 1); row <= lastRow; ++row) {
+                for (int col = clampCol(bounds[i]), lastCol = clampCol(bounds[i + 2] - 1); col <= lastCol; ++col) {
+                    cellItems[next[row * cols + col]++] = position;
+                }
+            }
+        }
+    }
+
+    private int clampCol(int x) {
+        return Math.max(0, Math.min(cols - 1, (x - gridLeft) / cellWidth));
+    }
+
+    private int clampRow(int y) {
+        return Math.max(0, Math.min(rows - 1, (y - gridTop) / cellHeight));
+    }
+
+    private View obtainView(int position) {
+        int type = adapter.getItemViewType(position);
+        ArrayList<View> scrap = scrapViews[type];
+        View convertView = scrap.isEmpty() ? null : scrap.remove(scrap.size() - 1);
+        View child = adapter.getView(position, convertView, layout);
+
+        ViewGroup.LayoutParams params = child.getLayoutParams();
+        ImageLayout.LayoutParams lp;
+        if (params instanceof ImageLayout.LayoutParams) {
+            lp = (ImageLayout.LayoutParams) params;
+        }
+        else {
+            lp = new ImageLayout.LayoutParams();
+        }
+        lp.resetImageCoordinates();
+        adapter.getItemLayoutParams(position, lp);
+        lp.viewType = type;
+        layout.attachRecycledView(child, lp);
+        return child;
+    }
+
+    private void recycle(View child) {
+        layout.detachRecycledView(child);
+        ImageLayout.LayoutParams lp = (ImageLayout.LayoutParams) child.getLayoutParams();
+        scrapViews[lp.viewType].add(child);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import android.content.Context;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+
+/**
+ * Translates pinch and drag gestures into zoom and pan operations on an {@link ImageLayout}.
+ * <p>Requires API level 8 (ScaleGestureDetector).
+ */
+class ZoomGestureHandler {
+    private final ImageLayout layout;
+    private final ScaleGestureDetector scaleDetector;
+    private final GestureDetector gestureDetector;
+    private boolean gestureInProgress;
+    // The same event can reach both onInterceptTouchEvent and onTouchEvent. Events are
+    // recycled by the framework, so they cannot be told apart by identity.
+    private boolean eventProcessed;
+
+    ZoomGestureHandler(Context context, ImageLayout layout) {
+        this.layout = layout;
+        scaleDetector = new ScaleGestureDetector(context, new ScaleListener());
+        gestureDetector = new GestureDetector(context, new PanListener());
+    }
+
+    /**
+     * Must be called at the start of each dispatchTouchEvent of the layout, before any
+     * of the other methods
+     */
+    void onDispatchTouchEvent() {
+        eventProcessed = false;
+    }
+
+    /**
+     * Returns true once a zoom or pan gesture has started, so that the layout can steal
+     * the rest of the gesture from its children
+     */
+    boolean onInterceptTouchEvent(MotionEvent ev) {
+        process(ev);
+        return gestureInProgress;
+    }
+
+    boolean onTouchEvent(MotionEvent ev) {
+        process(ev);
+        return true;
+    }
+
+    private void process(MotionEvent ev) {
+        if (eventProcessed) {
+            return;
+        }
+        eventProcessed = true;
+        scaleDetector.onTouchEvent(ev);
+        gestureDetector.onTouchEvent(ev);
+        int action = ev.getAction() & MotionEvent.ACTION_MASK;
+        if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            if (gestureInProgress) {
+                gestureInProgress = false;
+                layout.onZoomGestureEnd();
+            }
+        }
+    }
+
+    private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+        @Override
+        public boolean onScaleBegin(ScaleGestureDetector detector) {
+            gestureInProgress = true;
+            return true;
+        }
+
+        @Override
+        public boolean onScale(ScaleGestureDetector detector) {
+            layout.zoomBy(detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+            return true;
+        }
+    }
+
+    private class PanListener extends GestureDetector.SimpleOnGestureListener {
+        @Override
+        public boolean onDown(MotionEvent e) {
+            return true;
+        }
+
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+            // Only called once the touch slop has been exceeded
+            gestureInProgress = true;
+            layout.panBy(-distanceX, -distanceY);
+            return true;
+        }
+    }
+}
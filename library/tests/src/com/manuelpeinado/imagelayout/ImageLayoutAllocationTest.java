@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.graphics.drawable.ShapeDrawable;
+import android.view.View;
+import android.view.View.MeasureSpec;
+
+/**
+ * Guards against allocations creeping back into the steady-state measure and layout
+ * passes of an {@link ImageLayout}, i.e., those in which neither the size of the layout
+ * nor its image change, as when a child requests a layout on every frame.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18)
+public class ImageLayoutAllocationTest {
+    private static final int IMAGE_WIDTH = 4000;
+    private static final int IMAGE_HEIGHT = 3000;
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1920;
+    private static final int CHILD_COUNT = 100;
+    private static final int CHILD_SIZE = 50;
+    private static final int WARMUP_PASSES = 2000;
+    private static final int MEASURED_PASSES = 1000;
+
+    private com.sun.management.ThreadMXBean threadBean;
+    private ImageLayout layout;
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        // Only HotSpot-based JVMs can count the allocations of a thread
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        layout = new ImageLayout(Robolectric.application, null);
+        ShapeDrawable image = new ShapeDrawable();
+        image.setIntrinsicWidth(IMAGE_WIDTH);
+        image.setIntrinsicHeight(IMAGE_HEIGHT);
+        layout.setImageDrawable(image, IMAGE_WIDTH, IMAGE_HEIGHT);
+        Random random = new Random(42);
+        for (int i = 0; i < CHILD_COUNT; ++i) {
+            ImageLayout.LayoutParams lp = new ImageLayout.LayoutParams();
+            lp.left = random.nextInt(IMAGE_WIDTH - CHILD_SIZE);
+            lp.top = random.nextInt(IMAGE_HEIGHT - CHILD_SIZE);
+            lp.width = CHILD_SIZE;
+            lp.height = CHILD_SIZE;
+            layout.addView(new Child(), lp);
+        }
+    }
+
+    @Test
+    public void steadyStatePassesDoNotAllocate() {
+        assertNoAllocations("default");
+    }
+
+    @Test
+    public void steadyStatePassesDoNotAllocateWithPrecisePlacement() {
+        layout.setPrecisePlacementEnabled(true);
+        assertNoAllocations("precise placement");
+    }
+
+    @Test
+    public void steadyStatePassesDoNotAllocateWithBatchedTransforms() {
+        layout.setBatchedTransformsEnabled(true);
+        assertNoAllocations("batched transforms");
+    }
+
+    @Test
+    public void steadyStatePassesDoNotAllocateWithCropCulling() {
+        layout.setFitMode(ImageLayout.FIT_VERTICAL);
+        layout.setCropCullingEnabled(true);
+        assertNoAllocations("crop culling");
+    }
+
+    private void assertNoAllocations(String configuration) {
+        for (int i = 0; i < WARMUP_PASSES; ++i) {
+            runPass(i);
+        }
+        long threadId = Thread.currentThread().getId();
+        // Querying the counter may allocate by itself, so measure that first
+        long start = threadBean.getThreadAllocatedBytes(threadId);
+        long overhead = threadBean.getThreadAllocatedBytes(threadId) - start;
+        start = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_PASSES; ++i) {
+            runPass(i);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - start - overhead;
+        assertEquals(configuration + ": bytes allocated by " + MEASURED_PASSES + " passes", 0,
+                Math.max(0, allocated));
+    }
+
+    /**
+     * Measures and lays out the layout at the same size as the previous pass, after one
+     * of its children has been marked as needing a layout. The layout is driven by hand,
+     * so the child is marked with forceLayout, which unlike requestLayout is not shadowed.
+     */
+    private void runPass(int pass) {
+        layout.getChildAt(pass % CHILD_COUNT).forceLayout();
+        layout.measure(MeasureSpec.makeMeasureSpec(VIEW_WIDTH, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(VIEW_HEIGHT, MeasureSpec.EXACTLY));
+        layout.layout(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+    }
+
+    /**
+     * Skips the Robolectric shadow of View.onLayout, which allocates, so that only the
+     * allocations of ImageLayout are counted
+     */
+    private static class Child extends View {
+        Child() {
+            super(Robolectric.application);
+        }
+
+        @Override
+        protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        }
+    }
+}
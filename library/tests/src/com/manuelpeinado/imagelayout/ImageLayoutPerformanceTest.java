@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013 Manuel Peinado
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.manuelpeinado.imagelayout;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.graphics.drawable.ShapeDrawable;
+import android.view.View;
+import android.view.View.MeasureSpec;
+
+/**
+ * Measures the measure and layout passes of an {@link ImageLayout} with 10, 100 and 1000
+ * children in every fit mode, while the view is resized on every pass, and fails if they
+ * allocate memory or if their cost grows faster than the number of children.
+ * <p>Neither limit depends on the speed of the machine, so there is no baseline to
+ * store. Run with <code>gradle :library:robolectric</code>.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18)
+public class ImageLayoutPerformanceTest {
+    private static final int[] CHILD_COUNTS = { 10, 100, 1000 };
+    private static final int[] FIT_MODES = { ImageLayout.FIT_VERTICAL, ImageLayout.FIT_HORIZONTAL,
+            ImageLayout.FIT_BOTH, ImageLayout.FIT_AUTO };
+    private static final int IMAGE_WIDTH = 4000;
+    private static final int IMAGE_HEIGHT = 3000;
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1920;
+    private static final int CHILD_SIZE = 50;
+    private static final int WARMUP_PASSES = 1000;
+    private static final int MEASURED_PASSES = 100;
+    // Timings are the best of several runs, which filters out most of the noise
+    private static final int RUNS = 10;
+
+    /**
+     * How much more each child may cost with 1000 children than with 100. The cost per
+     * child should not change at all, so this only fails on superlinear work.
+     */
+    private static final float MAX_COST_PER_CHILD_RATIO = 3f;
+
+    private com.sun.management.ThreadMXBean threadBean;
+    private final int[] rect = new int[4];
+    private final int[] otherRect = new int[4];
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        // Only HotSpot-based JVMs can count the allocations of a thread
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void resizePassesDoNotAllocate() {
+        StringBuilder failures = new StringBuilder();
+        for (int childCount : CHILD_COUNTS) {
+            for (int fitMode : FIT_MODES) {
+                ImageLayout layout = createLayout(childCount, fitMode);
+                boolean resizeWidth = isFitIndependentOfWidth(fitMode);
+                runPasses(layout, resizeWidth, WARMUP_PASSES);
+                long bytes = measureBytes(layout, resizeWidth);
+                if (bytes > 0) {
+                    failures.append("\nfit mode ").append(fitMode).append(", ").append(childCount)
+                            .append(" children: ").append(bytes).append(" bytes in ").append(MEASURED_PASSES)
+                            .append(" passes");
+                }
+            }
+        }
+        assertTrue("Allocations of measure and layout passes:" + failures, failures.length() == 0);
+    }
+
+    @Test
+    public void resizePassesScaleLinearly() {
+        StringBuilder failures = new StringBuilder();
+        for (int fitMode : FIT_MODES) {
+            ImageLayout small = createLayout(100, fitMode);
+            ImageLayout large = createLayout(1000, fitMode);
+            boolean resizeWidth = isFitIndependentOfWidth(fitMode);
+            runPasses(small, resizeWidth, WARMUP_PASSES);
+            runPasses(large, resizeWidth, WARMUP_PASSES);
+            // Interleaved, so that both sizes suffer the same disturbances
+            long smallNanos = Long.MAX_VALUE;
+            long largeNanos = Long.MAX_VALUE;
+            for (int i = 0; i < RUNS; ++i) {
+                smallNanos = Math.min(smallNanos, measureNanosPerPass(small, resizeWidth));
+                largeNanos = Math.min(largeNanos, measureNanosPerPass(large, resizeWidth));
+            }
+            float perChild100 = smallNanos / 100f;
+            float perChild1000 = largeNanos / 1000f;
+            if (perChild1000 > perChild100 * MAX_COST_PER_CHILD_RATIO) {
+                failures.append("\nfit mode ").append(fitMode).append(": ").append(perChild100)
+                        .append(" ns per child with 100 children, ").append(perChild1000)
+                        .append(" ns with 1000");
+            }
+        }
+        assertTrue("Measure and layout cost grows faster than the child count:" + failures,
+                failures.length() == 0);
+    }
+
+    private static ImageLayout createLayout(int childCount, int fitMode) {
+        ImageLayout layout = new ImageLayout(Robolectric.application, null);
+        ShapeDrawable image = new ShapeDrawable();
+        image.setIntrinsicWidth(IMAGE_WIDTH);
+        image.setIntrinsicHeight(IMAGE_HEIGHT);
+        layout.setImageDrawable(image, IMAGE_WIDTH, IMAGE_HEIGHT);
+        layout.setFitMode(fitMode);
+        Random random = new Random(42);
+        for (int i = 0; i < childCount; ++i) {
+            ImageLayout.LayoutParams lp = new ImageLayout.LayoutParams();
+            lp.left = random.nextInt(IMAGE_WIDTH - CHILD_SIZE);
+            lp.top = random.nextInt(IMAGE_HEIGHT - CHILD_SIZE);
+            lp.width = CHILD_SIZE;
+            lp.height = CHILD_SIZE;
+            layout.addView(new View(Robolectric.application), lp);
+        }
+        return layout;
+    }
+
+    /**
+     * Returns true if halving the width of the view moves the fitted image without
+     * resizing it, or false if halving the height does. Resizing the view along that
+     * side makes every pass fit the image and transform the children again, while the
+     * rasterized image stays valid, so that only measure and layout are timed.
+     */
+    private boolean isFitIndependentOfWidth(int fitMode) {
+        int gravity = FitEngine.CENTER_HORIZONTAL | FitEngine.CENTER_VERTICAL;
+        FitEngine.fit(fitMode, gravity, IMAGE_WIDTH, IMAGE_HEIGHT, VIEW_WIDTH, VIEW_HEIGHT, rect);
+        FitEngine.fit(fitMode, gravity, IMAGE_WIDTH, IMAGE_HEIGHT, VIEW_WIDTH / 2, VIEW_HEIGHT, otherRect);
+        if (isSameSize(rect, otherRect)) {
+            return true;
+        }
+        FitEngine.fit(fitMode, gravity, IMAGE_WIDTH, IMAGE_HEIGHT, VIEW_WIDTH, VIEW_HEIGHT / 2, otherRect);
+        assertTrue("fit mode " + fitMode + " depends on both sides of the view", isSameSize(rect, otherRect));
+        return false;
+    }
+
+    private static boolean isSameSize(int[] a, int[] b) {
+        return a[2] - a[0] == b[2] - b[0] && a[3] - a[1] == b[3] - b[1];
+    }
+
+    private long measureBytes(ImageLayout layout, boolean resizeWidth) {
+        long threadId = Thread.currentThread().getId();
+        // Querying the counter may allocate by itself, so measure that first
+        long start = threadBean.getThreadAllocatedBytes(threadId);
+        long overhead = threadBean.getThreadAllocatedBytes(threadId) - start;
+        start = threadBean.getThreadAllocatedBytes(threadId);
+        runPasses(layout, resizeWidth, MEASURED_PASSES);
+        return Math.max(0, threadBean.getThreadAllocatedBytes(threadId) - start - overhead);
+    }
+
+    private static long measureNanosPerPass(ImageLayout layout, boolean resizeWidth) {
+        long start = System.nanoTime();
+        runPasses(layout, resizeWidth, MEASURED_PASSES);
+        return (System.nanoTime() - start) / MEASURED_PASSES;
+    }
+
+    /**
+     * Runs measure and layout passes alternating between the full size of the view and
+     * half of it along one side, as during an animated resize
+     */
+    private static void runPasses(ImageLayout layout, boolean resizeWidth, int count) {
+        for (int i = 0; i < count; ++i) {
+            boolean half = i % 2 == 1;
+            int width = half && resizeWidth ? VIEW_WIDTH / 2 : VIEW_WIDTH;
+            int height = half && !resizeWidth ? VIEW_HEIGHT / 2 : VIEW_HEIGHT;
+            layout.measure(MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
+                    MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY));
+            layout.layout(0, 0, width, height);
+        }
+    }
+}
@@ -37,7 +37,7 @@ public class ChangeImageDynamicallyActivity extends Activity {
     }
 
     public void onButtonClick(View view) {
-        imageLayout.setImageResource(R.drawable.manhattan, 800, 1449);
+        imageLayout.setImageResourceAsync(R.drawable.manhattan, 800, 1449);
         imageLayout.setGravity(Gravity.CENTER);
         imageLayout.setPadding(0, -100, 0, -100);
         imageLayout.setFitMode(ImageLayout.FIT_VERTICAL);